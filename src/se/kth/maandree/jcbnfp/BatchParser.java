@@ -0,0 +1,333 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+
+/**
+ * <p>Parses many files with one parser, in parallel</p>
+ * <p>
+ *   The files are parsed on a pool of threads that share the parser, and thus the compiled
+ *   grammar, and the result of each file is delivered to a callback as soon as it has been
+ *   parsed, so the trees do not have to be kept until the whole batch is done. The callback
+ *   is invoked by the parsing threads, so it must be thread-safe. Any executor can be used,
+ *   for example one that starts a virtual thread for each task where they are available.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class BatchParser
+{
+    /**
+     * Constructor, with a pool of as many threads as there are processors
+     * 
+     * @param  parser  The parser to use for every file
+     */
+    public BatchParser(final Parser parser)
+    {
+	this(parser, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  parser   The parser to use for every file
+     * @param  threads  The number of threads to parse on
+     */
+    public BatchParser(final Parser parser, final int threads)
+    {
+	if (threads < 1)
+	    throw new IllegalArgumentException("At least one thread is required");
+	this.parser = parser;
+	this.threads = threads;
+	this.executor = null;
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  parser    The parser to use for every file
+     * @param  executor  The executor to parse on, it is not shut down by the batch parser
+     */
+    public BatchParser(final Parser parser, final ExecutorService executor)
+    {
+	this.parser = parser;
+	this.threads = 0;
+	this.executor = executor;
+    }
+    
+    
+    
+    /**
+     * The parser to use for every file
+     */
+    private final Parser parser;
+    
+    /**
+     * The number of threads to parse on, if a pool is created for each batch
+     */
+    private final int threads;
+    
+    /**
+     * The executor to parse on, <code>null</code> if a pool is created for each batch
+     */
+    private final ExecutorService executor;
+    
+    
+    
+    /**
+     * Parses files and waits until all of them are parsed
+     * 
+     * @param   files     The files to parse
+     * @param   limits    The limits of each parse, <code>null</code> for none
+     * @param   callback  Receives the result of each file
+     * @return            Statistics of the batch
+     * 
+     * @throws  InterruptedException  If interrupted while waiting, the files that have not
+     *                                been parsed yet are then parsed in the background
+     */
+    public Statistics parse(final Collection<Path> files, final ParseLimits limits, final Callback callback) throws InterruptedException
+    {
+	final ExecutorService executor = this.executor != null ? this.executor : Executors.newFixedThreadPool(this.threads);
+	
+	final CountDownLatch remaining = new CountDownLatch(files.size());
+	final AtomicLong matched = new AtomicLong();
+	final AtomicLong unmatched = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+	final AtomicLong characters = new AtomicLong();
+	final long start = System.nanoTime();
+	
+	try
+	{
+	    for (final Path file : files)
+		executor.execute(new Runnable()
+		    {
+			/**
+			 * {@inheritDoc}
+			 */
+			@Override
+			public void run()
+			{
+			    try
+			    {
+				final ParseContext context = new ParseContext(limits);
+				final ParseTree tree;
+				try
+				{
+				    tree = BatchParser.this.parser.parse(file, context);
+				}
+				catch (final Throwable err)
+				{
+				    failed.incrementAndGet();
+				    callback.failed(file, err);
+				    return;
+				}
+				
+				characters.addAndGet(context.getText().length());
+				try
+				{
+				    callback.parsed(file, tree);
+				}
+				catch (final Throwable err)
+				{
+				    failed.incrementAndGet();
+				    callback.failed(file, err);
+				    return;
+				}
+				(tree == null ? unmatched : matched).incrementAndGet();
+			    }
+			    finally
+			    {
+				remaining.countDown();
+			    }
+			}
+		    });
+	    
+	    remaining.await();
+	}
+	finally
+	{
+	    if (this.executor == null)
+		executor.shutdown();
+	}
+	
+	return new Statistics(files.size(), matched.get(), unmatched.get(), failed.get(), characters.get(), System.nanoTime() - start);
+    }
+    
+    
+    /**
+     * Lists all regular files in a directory and its subdirectories
+     * 
+     * @param   directory  The directory
+     * @return             The files, in sorted order
+     * 
+     * @throws  IOException  On I/O exception
+     */
+    public static List<Path> listFiles(final Path directory) throws IOException
+    {
+	final ArrayList<Path> files = new ArrayList<Path>();
+	Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+	    {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+		{
+		    if (attributes.isRegularFile())
+			files.add(file);
+		    return FileVisitResult.CONTINUE;
+		}
+	    });
+	Collections.sort(files);
+	return files;
+    }
+    
+    
+    
+    /**
+     * Receiver of the results of a batch, invoked by the parsing threads
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    public static interface Callback
+    {
+	/**
+	 * Invoked when a file has been parsed
+	 * 
+	 * @param  file  The file
+	 * @param  tree  The parsed tree, <code>null</code> if the grammar did not match
+	 */
+	public abstract void parsed(final Path file, final ParseTree tree);
+	
+	/**
+	 * Invoked when a file could not be parsed, or when {@link #parsed(Path, ParseTree)} threw
+	 * 
+	 * @param  file   The file
+	 * @param  error  The cause, for example an {@link IOException} or a {@link ParseLimitException}
+	 */
+	public abstract void failed(final Path file, final Throwable error);
+	
+    }
+    
+    
+    
+    /**
+     * Statistics of a batch
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    public static final class Statistics
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  files       The number of files
+	 * @param  matched     The number of files the grammar matched
+	 * @param  unmatched   The number of files the grammar did not match
+	 * @param  failed      The number of files that could not be parsed, or whose callback threw
+	 * @param  characters  The number of characters in the files that were parsed
+	 * @param  elapsed     The time the batch took, in nanoseconds
+	 */
+	Statistics(final int files, final long matched, final long unmatched, final long failed, final long characters, final long elapsed)
+	{
+	    this.files = files;
+	    this.matched = matched;
+	    this.unmatched = unmatched;
+	    this.failed = failed;
+	    this.characters = characters;
+	    this.elapsed = elapsed;
+	}
+	
+	
+	
+	/**
+	 * The number of files
+	 */
+	public final int files;
+	
+	/**
+	 * The number of files the grammar matched
+	 */
+	public final long matched;
+	
+	/**
+	 * The number of files the grammar did not match
+	 */
+	public final long unmatched;
+	
+	/**
+	 * The number of files that could not be parsed, or whose callback threw,
+	 * these are not counted as matched or not matched
+	 */
+	public final long failed;
+	
+	/**
+	 * The number of characters in the files that were parsed
+	 */
+	public final long characters;
+	
+	/**
+	 * The time the batch took, in nanoseconds
+	 */
+	public final long elapsed;
+	
+	
+	
+	/**
+	 * Gets the number of files parsed per second
+	 * 
+	 * @return  The number of files parsed per second
+	 */
+	public double getFilesPerSecond()
+	{
+	    return this.elapsed == 0 ? 0. : (this.files * 1e9 / this.elapsed);
+	}
+	
+	/**
+	 * Gets the number of characters parsed per second
+	 * 
+	 * @return  The number of characters parsed per second
+	 */
+	public double getCharactersPerSecond()
+	{
+	    return this.elapsed == 0 ? 0. : (this.characters * 1e9 / this.elapsed);
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString()
+	{
+	    return this.files + " files (" + this.matched + " matched, " + this.unmatched + " did not match, " + this.failed + " failed), " +
+		   this.characters + " characters in " + (this.elapsed / 1000000L) + " ms: " +
+		   Math.round(getFilesPerSecond()) + " files/s, " + Math.round(getCharactersPerSecond()) + " characters/s";
+	}
+	
+    }
+    
+}
@@ -0,0 +1,201 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.util.*;
+
+
+/**
+ * <p>Named capture stack, keeps the spans captured by stores while parsing</p>
+ * <p>
+ *   Captures are pushed when a store is entered and completed when it has been parsed,
+ *   and are popped in the same way that children are undone when a grammar element does
+ *   not match, so the stack only holds the captures that are in scope. Each capture is
+ *   linked to the previous capture in the same slot, so the latest capture of a name can
+ *   be found without searching the stack.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+final class CaptureStack
+{
+    /**
+     * The number of integers used for each capture
+     */
+    private static final int ENTRY = 4;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  slots  The number of capture slots in the grammar
+     */
+    CaptureStack(final int slots)
+    {
+	this.latest = new int[slots];
+	Arrays.fill(this.latest, -1);
+    }
+    
+    
+    
+    /**
+     * The captures, as slot, start, end (<code>-1</code> while incomplete),
+     * and the index of the previous capture in the same slot
+     */
+    private int[] entries = new int[ENTRY * 16];
+    
+    /**
+     * The number of captures
+     */
+    private int size = 0;
+    
+    /**
+     * The index of the latest capture of each slot, <code>-1</code> if none
+     */
+    private final int[] latest;
+    
+    
+    
+    /**
+     * Gets the number of captures, which can be used as a mark to truncate the stack to
+     * 
+     * @return  The number of captures
+     */
+    int size()
+    {
+	return this.size;
+    }
+    
+    
+    /**
+     * Pushes an incomplete capture
+     * 
+     * @param   slot   The slot of the capture's name
+     * @param   start  The start of the capture, inclusive
+     * @return         The index of the capture
+     */
+    int push(final int slot, final int start)
+    {
+	if (this.size * ENTRY == this.entries.length)
+	    this.entries = Arrays.copyOf(this.entries, this.entries.length << 1);
+	
+	final int i = this.size * ENTRY;
+	this.entries[i] = slot;
+	this.entries[i + 1] = start;
+	this.entries[i + 2] = -1;
+	this.entries[i + 3] = this.latest[slot];
+	this.latest[slot] = this.size;
+	return this.size++;
+    }
+    
+    
+    /**
+     * Completes a capture
+     * 
+     * @param  capture  The index of the capture
+     * @param  end      The end of the capture, exclusive
+     */
+    void complete(final int capture, final int end)
+    {
+	this.entries[capture * ENTRY + 2] = end;
+    }
+    
+    
+    /**
+     * Pops all captures above a mark
+     * 
+     * @param  mark  The number of captures to keep
+     */
+    void truncate(final int mark)
+    {
+	final int[] entries = this.entries;
+	for (int i = this.size - 1; i >= mark; i--)
+	    this.latest[entries[i * ENTRY]] = entries[i * ENTRY + 3];
+	this.size = mark;
+    }
+    
+    
+    /**
+     * Finds the latest complete capture in a slot, captures that are incomplete are
+     * skipped as they are only incomplete while their store is being parsed
+     * 
+     * @param   slot  The slot of the capture's name
+     * @return        The index of the capture, <code>-1</code> if none
+     */
+    int find(final int slot)
+    {
+	final int[] entries = this.entries;
+	int i = this.latest[slot];
+	while ((i >= 0) && (entries[i * ENTRY + 2] < 0))
+	    i = entries[i * ENTRY + 3];
+	return i;
+    }
+    
+    
+    /**
+     * Gets the start of a capture
+     * 
+     * @param   capture  The index of the capture
+     * @return           The start of the capture, inclusive
+     */
+    int start(final int capture)
+    {
+	return this.entries[capture * ENTRY + 1];
+    }
+    
+    
+    /**
+     * Gets the end of a capture
+     * 
+     * @param   capture  The index of the capture
+     * @return           The end of the capture, exclusive
+     */
+    int end(final int capture)
+    {
+	return this.entries[capture * ENTRY + 2];
+    }
+    
+    
+    /**
+     * Creates named capture storage of the captures above a mark, in the order they were pushed
+     * 
+     * @param   mark   The number of captures to exclude
+     * @param   names  The capture names, by slot
+     * @return         The named capture storage, <code>null</code> if there are no captures above the mark
+     */
+    HashMap<String, ArrayDeque<int[]>> storage(final int mark, final String[] names)
+    {
+	if (this.size == mark)
+	    return null;
+	
+	final HashMap<String, ArrayDeque<int[]>> rc = new HashMap<String, ArrayDeque<int[]>>();
+	final int[] entries = this.entries;
+	for (int i = mark * ENTRY, n = this.size * ENTRY; i < n; i += ENTRY)
+	{
+	    final String name = names[entries[i]];
+	    ArrayDeque<int[]> list = rc.get(name);
+	    if (list == null)
+		rc.put(name, list = new ArrayDeque<int[]>());
+	    list.offerLast(new int[] { entries[i + 1], entries[i + 2] });
+	}
+	return rc;
+    }
+    
+}
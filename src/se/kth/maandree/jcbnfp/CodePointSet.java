@@ -0,0 +1,237 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.util.*;
+
+
+/**
+ * <p>Immutable set of characters, for constant time membership tests</p>
+ * <p>
+ *   Characters in the Basic Multilingual Plane are stored in a bitmap,
+ *   characters outside it are stored as sorted ranges that are binary searched.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class CodePointSet
+{
+    /**
+     * Constructor
+     * 
+     * @param  ranges  Inclusive character ranges, as pairs of the first and the last character
+     *                 in the range; the ranges may be in any order and may overlap
+     */
+    public CodePointSet(final int... ranges)
+    {
+	final int n = ranges.length >> 1;
+	final long[] sorted = new long[n];
+	for (int i = 0; i < n; i++)
+	{
+	    final int lo = ranges[i << 1], hi = ranges[(i << 1) | 1];
+	    sorted[i] = ((long)lo << 32) | (hi & 0xFFFFFFFFL);
+	}
+	Arrays.sort(sorted);
+	
+	final int[] merged = new int[n << 1];
+	int ptr = 0;
+	for (final long range : sorted)
+	{
+	    final int lo = (int)(range >> 32);
+	    final int hi = (int)range;
+	    if (lo > hi)
+		continue;
+	    
+	    if ((ptr > 0) && ((long)lo <= (long)(merged[ptr - 1]) + 1))
+	    {
+		if (merged[ptr - 1] < hi)
+		    merged[ptr - 1] = hi;
+	    }
+	    else
+	    {
+		merged[ptr++] = lo;
+		merged[ptr++] = hi;
+	    }
+	}
+	
+	this.ranges = Arrays.copyOf(merged, ptr);
+	
+	int top = -1, outside = 0;
+	for (int i = 0; i < ptr; i += 2)
+	{
+	    final int lo = merged[i], hi = merged[i + 1];
+	    if ((hi >= 0) && (lo <= 0xFFFF))
+		top = hi < 0xFFFF ? hi : 0xFFFF;
+	    if ((lo < 0) || (hi > 0xFFFF))
+		outside += 2;
+	}
+	
+	this.bmp = new long[(top >> 6) + 1];
+	this.astral = new int[outside];
+	outside = 0;
+	for (int i = 0; i < ptr; i += 2)
+	{
+	    final int lo = merged[i], hi = merged[i + 1];
+	    if ((lo < 0) || (hi > 0xFFFF))
+	    {
+		this.astral[outside++] = lo;
+		this.astral[outside++] = hi;
+	    }
+	    for (int c = lo < 0 ? 0 : lo, e = hi < 0xFFFF ? hi : 0xFFFF; c <= e; c++)
+		this.bmp[c >>> 6] |= 1L << c;
+	}
+    }
+    
+    
+    
+    /**
+     * Sorted, disjoint, inclusive character ranges, as pairs of the first and the last character in the range
+     */
+    private final int[] ranges;
+    
+    /**
+     * Membership bitmap for the Basic Multilingual Plane, up to the greatest character in it that is in the set
+     */
+    private final long[] bmp;
+    
+    /**
+     * Sorted, disjoint, inclusive character ranges that are not entirely in the Basic Multilingual Plane,
+     * as pairs of the first and the last character in the range
+     */
+    private final int[] astral;
+    
+    
+    
+    /**
+     * Tests whether a character is contained by the set
+     * 
+     * @param   character  The character
+     * @return             Whether a character is contained by the set
+     */
+    public boolean contains(final int character)
+    {
+	if ((character >>> 16) == 0)
+	{
+	    final int index = character >>> 6;
+	    return (index < this.bmp.length) && (((this.bmp[index] >>> character) & 1L) != 0);
+	}
+	
+	final int[] astral = this.astral;
+	int low = 0, high = (astral.length >> 1) - 1;
+	while (low <= high)
+	{
+	    final int mid = (low + high) >>> 1;
+	    if (character < astral[mid << 1])
+		high = mid - 1;
+	    else if (character > astral[(mid << 1) | 1])
+		low = mid + 1;
+	    else
+		return true;
+	}
+	return false;
+    }
+    
+    
+    /**
+     * Gets the characters in the set
+     * 
+     * @return  Sorted, disjoint, inclusive character ranges, as pairs of the first and the last character in the range
+     */
+    public int[] getRanges()
+    {
+	return this.ranges.clone();
+    }
+    
+    
+    /**
+     * Creates a set of the characters that are in this set or in another set
+     * 
+     * @param   other  The characters to include
+     * @return         The characters in this set or in {@code other}
+     */
+    public CodePointSet union(final CodePointSet other)
+    {
+	final int[] rc = new int[this.ranges.length + other.ranges.length];
+	System.arraycopy(this.ranges, 0, rc, 0, this.ranges.length);
+	System.arraycopy(other.ranges, 0, rc, this.ranges.length, other.ranges.length);
+	return new CodePointSet(rc);
+    }
+    
+    
+    /**
+     * Creates a set of the characters in this set that are not in another set
+     * 
+     * @param   other  The characters to exclude
+     * @return         The characters in this set but not in {@code other}
+     */
+    public CodePointSet subtract(final CodePointSet other)
+    {
+	final int[] a = this.ranges, b = other.ranges;
+	final int[] rc = new int[a.length + b.length];
+	int ptr = 0, j = 0;
+	
+	for (int i = 0, n = a.length, m = b.length; i < n; i += 2)
+	{
+	    long lo = a[i];
+	    final long hi = a[i + 1];
+	    
+	    while ((j < m) && (b[j + 1] < lo))
+		j += 2;
+	    
+	    for (int k = j; (k < m) && (b[k] <= hi) && (lo <= hi); k += 2)
+	    {
+		if (b[k] > lo)
+		{
+		    rc[ptr++] = (int)lo;
+		    rc[ptr++] = b[k] - 1;
+		}
+		lo = (long)(b[k + 1]) + 1;
+	    }
+	    
+	    if (lo <= hi)
+	    {
+		rc[ptr++] = (int)lo;
+		rc[ptr++] = (int)hi;
+	    }
+	}
+	
+	return new CodePointSet(Arrays.copyOf(rc, ptr));
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object other)
+    {
+	return (other instanceof CodePointSet) && Arrays.equals(this.ranges, ((CodePointSet)other).ranges);
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+	return Arrays.hashCode(this.ranges);
+    }
+    
+}
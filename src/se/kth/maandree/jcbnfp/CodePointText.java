@@ -0,0 +1,301 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+
+/**
+ * <p>Text indexed by character, rather than by UTF-16 unit</p>
+ * <p>
+ *   The text is stored in a byte array if all characters are in Latin-1,
+ *   in a char array if all characters are in the Basic Multilingual Plane,
+ *   and in an int array otherwise.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public abstract class CodePointText
+{
+    /**
+     * Package-private constructor, the subclasses are defined in this class
+     */
+    CodePointText()
+    {
+	//Do nothing
+    }
+    
+    
+    
+    /**
+     * Gets the number of characters in the text
+     * 
+     * @return  The number of characters in the text
+     */
+    public abstract int length();
+    
+    
+    /**
+     * Gets a character in the text
+     * 
+     * @param   index  The index of the character
+     * @return         The character
+     */
+    public abstract int get(final int index);
+    
+    
+    /**
+     * Finds the end of a run of characters that are all in a set
+     * 
+     * @param   set  The set of characters
+     * @param   off  The offset of the run in the text
+     * @param   end  The greatest index the run may end at, exclusive
+     * @return       The index of the first character, from {@code off}, that is not in the set, or {@code end}
+     */
+    public int span(final CodePointSet set, final int off, final int end)
+    {
+	int i = off;
+	while ((i < end) && set.contains(get(i)))
+	    i++;
+	return i;
+    }
+    
+    
+    /**
+     * Copies a part of the text to a new array
+     * 
+     * @param   off  The offset of the part in the text
+     * @param   len  The length of the part
+     * @return       The characters in the part
+     */
+    public int[] toArray(final int off, final int len)
+    {
+	final int[] rc = new int[len];
+	for (int i = 0; i < len; i++)
+	    rc[i] = get(off + i);
+	return rc;
+    }
+    
+    
+    /**
+     * Creates a text backed by an array of characters, the array is not copied
+     * 
+     * @param   text  The characters
+     * @return        The text
+     */
+    public static CodePointText wrap(final int[] text)
+    {
+	return new UTF32(text);
+    }
+    
+    
+    
+    /**
+     * Text where all characters are in Latin-1, one byte per character
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    static final class Latin1 extends CodePointText
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  text  The characters
+	 */
+	Latin1(final byte[] text)
+	{
+	    this.text = text;
+	}
+	
+	
+	
+	/**
+	 * The characters
+	 */
+	final byte[] text;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int length()
+	{
+	    return this.text.length;
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int get(final int index)
+	{
+	    return this.text[index] & 255;
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int span(final CodePointSet set, final int off, final int end)
+	{
+	    final byte[] text = this.text;
+	    int i = off;
+	    while ((i < end) && set.contains(text[i] & 255))
+		i++;
+	    return i;
+	}
+    }
+    
+    
+    /**
+     * Text where all characters are in the Basic Multilingual Plane, one char per character
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    static final class UTF16 extends CodePointText
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  text  The characters, without surrogate pairs
+	 */
+	UTF16(final char[] text)
+	{
+	    this.text = text;
+	}
+	
+	
+	
+	/**
+	 * The characters
+	 */
+	final char[] text;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int length()
+	{
+	    return this.text.length;
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int get(final int index)
+	{
+	    return this.text[index];
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int span(final CodePointSet set, final int off, final int end)
+	{
+	    final char[] text = this.text;
+	    int i = off;
+	    while ((i < end) && set.contains(text[i]))
+		i++;
+	    return i;
+	}
+    }
+    
+    
+    /**
+     * Text with any characters, one int per character
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    static final class UTF32 extends CodePointText
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  text  The characters
+	 */
+	UTF32(final int[] text)
+	{
+	    this.text = text;
+	}
+	
+	
+	
+	/**
+	 * The characters
+	 */
+	final int[] text;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int length()
+	{
+	    return this.text.length;
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int get(final int index)
+	{
+	    return this.text[index];
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int span(final CodePointSet set, final int off, final int end)
+	{
+	    final int[] text = this.text;
+	    int i = off;
+	    while ((i < end) && set.contains(text[i]))
+		i++;
+	    return i;
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int[] toArray(final int off, final int len)
+	{
+	    final int[] rc = new int[len];
+	    System.arraycopy(this.text, off, rc, 0, len);
+	    return rc;
+	}
+    }
+    
+}
@@ -0,0 +1,414 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+
+
+/**
+ * <p>Superclass of parsers generated for a grammar by {@link GrammarCompiler}</p>
+ * <p>
+ *   The generated parsers are loaded by a class loader of their own, and can thus only
+ *   use public members of this package; this class provides them with what they need
+ *   to build the tree exactly as {@link ParseTree#parse(CodePointText, int)} does.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public abstract class CompiledParser
+{
+    /**
+     * Memoised result of a definition that did not match
+     */
+    protected static final Object FAILED = PackratMemo.FAILED;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  grammar   The compiled grammar
+     * @param  elements  The grammar elements that the generated parser looks up at runtime, by index
+     */
+    protected CompiledParser(final Grammar grammar, final GrammarElement[] elements)
+    {
+	this.grammar = grammar;
+	this.elements = elements;
+    }
+    
+    
+    
+    /**
+     * The compiled grammar
+     */
+    private final Grammar grammar;
+    
+    /**
+     * The grammar elements that the generated parser looks up at runtime, by index
+     */
+    private final GrammarElement[] elements;
+    
+    
+    
+    /**
+     * Parses a tree and stores all data, exactly as {@link ParseTree#parse(CodePointText, int)}
+     * 
+     * @param   tree  The root node, which should not have been parsed
+     * @param   data  The data
+     * @param   off   The offset in the data
+     * @return        The amount of read data
+     * 
+     * @throws  ParseLimitException  If the parse exceeds its limits
+     */
+    int parse(final ParseTree tree, final CodePointText data, final int off)
+    {
+	return definition(tree.id, tree, data, off);
+    }
+    
+    
+    /**
+     * Parses a node for a definition and stores all data
+     * 
+     * @param   id    The id of the node's definition
+     * @param   node  The node
+     * @param   data  The data
+     * @param   off   The offset in the data
+     * @return        The amount of read data
+     */
+    protected abstract int definition(final int id, final ParseTree node, final CodePointText data, final int off);
+    
+    
+    
+    /**
+     * Gets the set of characters of a grammar element
+     * 
+     * @param   element  The index of the grammar element, which is a {@link JCBNFCharacters}
+     * @return           The set of characters
+     */
+    protected final CodePointSet set(final int element)
+    {
+	return ((JCBNFCharacters)(this.elements[element])).toCodePointSet();
+    }
+    
+    
+    /**
+     * Parses an atomary grammar element
+     * 
+     * @param   element  The index of the grammar element
+     * @param   data     The data
+     * @param   off      The offset in the data
+     * @return           The end of the atom, <code>-1</code> if it did not pass
+     */
+    protected final int atom(final int element, final CodePointText data, final int off)
+    {
+	final int read = Parser.passes(data, off, this.elements[element]);
+	return read < 0 ? -1 : (off + read);
+    }
+    
+    
+    /**
+     * Tests whether the data can pass a string
+     * 
+     * @param   data    The data
+     * @param   off     The offset in the data
+     * @param   string  The string
+     * @return          Whether the string passes
+     */
+    protected static boolean matches(final CodePointText data, final int off, final int[] string)
+    {
+	final int n = string.length;
+	
+	if (off + n >= data.length())
+	    return false;
+	
+	for (int i = 0; i < n; i++)
+	    if (data.get(i + off) != string[i])
+		return false;
+	
+	return true;
+    }
+    
+    
+    /**
+     * Parses a backtrack
+     * 
+     * @param   element  The index of the grammar element, which is a {@link JCBNFBacktrack}
+     * @param   node     The node in which the backtrack is parsed
+     * @param   data     The data
+     * @param   off      The offset in the data
+     * @return           The end of the backtrack, <code>-1</code> if it did not pass
+     */
+    protected final int backtrack(final int element, final ParseTree node, final CodePointText data, final int off)
+    {
+	final int read = Parser.passes(data, off, (JCBNFBacktrack)(this.elements[element]), node.context.captureStack);
+	return read < 0 ? -1 : (off + read);
+    }
+    
+    
+    /**
+     * Parses a bounded repeat of an atom that always reads at least one character when it passes
+     * 
+     * @param   element  The index of the repeated grammar element
+     * @param   node     The node in which the repeat is parsed
+     * @param   data     The data
+     * @param   off      The offset in the data
+     * @param   min      The minimum number of repetitions
+     * @param   max      The maximum number of repetitions, <code>-1</code> for infinity
+     * @return           The end of the repetitions, <code>-1</code> if it did not pass
+     */
+    protected final int scan(final int element, final ParseTree node, final CodePointText data, final int off, final int min, final int max)
+    {
+	return node.scan(data, off, this.elements[element], min, max);
+    }
+    
+    
+    /**
+     * Parses a bounded repeat of a set of characters
+     * 
+     * @param   node  The node in which the repeat is parsed
+     * @param   set   The set of characters
+     * @param   data  The data
+     * @param   off   The offset in the data
+     * @param   min   The minimum number of repetitions
+     * @param   max   The maximum number of repetitions, <code>-1</code> for infinity
+     * @return        The end of the repetitions, <code>-1</code> if it did not pass
+     */
+    protected static int span(final ParseTree node, final CodePointSet set, final CodePointText data, final int off, final int min, final int max)
+    {
+	final int n = data.length();
+	final int end = (max < 0) || (max >= n - off) ? n : (off + max);
+	final int rc = data.span(set, off, end);
+	
+	if (rc - off < min)
+	    return -1;
+	return node.paniced ? (off + min) : rc;
+    }
+    
+    
+    /**
+     * Gets the alternatives of an alternation that can pass on a character
+     * 
+     * @param   element  The index of the grammar element, which is a {@link DispatchedAlternation}
+     * @param   next     The next character, <code>-1</code> at the end of the data
+     * @return           The indices of the alternatives, in order, <code>null</code> if
+     *                   {@link #viable(int, int, int)} must be used for every alternative
+     */
+    protected final int[] candidates(final int element, final int next)
+    {
+	final DispatchedAlternation alternation = (DispatchedAlternation)(this.elements[element]);
+	return next < 0 ? alternation.atEnd : alternation.candidates(next);
+    }
+    
+    
+    /**
+     * Tests whether an alternative of an alternation can pass on a character
+     * 
+     * @param   element      The index of the grammar element, which is a {@link DispatchedAlternation}
+     * @param   alternative  The index of the alternative
+     * @param   next         The next character
+     * @return               Whether the alternative can pass
+     */
+    protected final boolean viable(final int element, final int alternative, final int next)
+    {
+	return ((DispatchedAlternation)(this.elements[element])).viable(alternative, next);
+    }
+    
+    
+    
+    /**
+     * Starts the parsing of a node, checking the limits of the parse
+     * 
+     * @param  node  The node
+     * @param  off   The offset in the data
+     * 
+     * @throws  ParseLimitException  If the parse exceeds its limits
+     */
+    protected static void step(final ParseTree node, final int off)
+    {
+	if (node.context.budget != null)
+	    node.context.budget.step(node, off);
+    }
+    
+    
+    /**
+     * Creates a child node for a definition reference
+     * 
+     * @param   parent  The node in which the definition is referenced
+     * @param   id      The id of the definition
+     * @return          The child node, it is not added to the parent
+     */
+    protected final ParseTree child(final ParseTree parent, final int id)
+    {
+	return new ParseTree(parent, id, this.grammar, parent.context);
+    }
+    
+    
+    /**
+     * Gets the remembered result of a definition at an offset
+     * 
+     * @param   parent  The node in which the definition is referenced
+     * @param   id      The id of the definition
+     * @param   off     The offset in the data
+     * @return          The parsed node, {@link #FAILED} if it did not match,
+     *                  <code>null</code> if nothing is remembered
+     */
+    protected static Object recall(final ParseTree parent, final int id, final int off)
+    {
+	return parent.context.memo == null ? null : parent.context.memo.get(id, off);
+    }
+    
+    
+    /**
+     * Remembers the result of a definition at an offset, if packrat parsing is used
+     * 
+     * @param  parent  The node in which the definition is referenced
+     * @param  id      The id of the definition
+     * @param  off     The offset in the data
+     * @param  result  The parsed node, {@link #FAILED} if it did not match
+     */
+    protected static void remember(final ParseTree parent, final int id, final int off, final Object result)
+    {
+	if (parent.context.memo != null)
+	    parent.context.memo.put(id, off, result);
+    }
+    
+    
+    /**
+     * Makes a node a copy of a memoised node
+     * 
+     * @param  node      The node
+     * @param  memoised  The memoised node
+     */
+    protected static void restore(final ParseTree node, final Object memoised)
+    {
+	node.copy((ParseTree)memoised);
+    }
+    
+    
+    /**
+     * Adds a parsed child node to its parent
+     * 
+     * @param   parent  The parent node
+     * @param   child   The child node
+     * @return          The end of the child node
+     */
+    protected static int adopt(final ParseTree parent, final ParseTree child)
+    {
+	parent.paniced |= child.paniced;
+	parent.compile |= child.compile;
+	parent.children.add(child);
+	return child.intervalEnd;
+    }
+    
+    
+    /**
+     * Stores the result of the parsing of a node
+     * 
+     * @param   node    The node
+     * @param   off     The offset in the data at which the node was parsed
+     * @param   read    The amount of read data, <code>-1</code> if it did not match
+     * @param   stored  The number of captures on the named capture stack when the node
+     *                  was entered, <code>-1</code> if the definition contains no stores
+     * @return          The amount of read data
+     */
+    protected static int close(final ParseTree node, final int off, final int read, final int stored)
+    {
+	if (stored >= 0)
+	{
+	    node.storage = read < 0 ? null : node.context.captureStack.storage(stored, node.grammar.slotNames);
+	    node.context.captureStack.truncate(stored);
+	}
+	
+	node.intervalStart = off;
+	node.intervalEnd = read < 0 ? off : read;
+	
+	node.paniced |= node.definition.panics.isEmpty() == false;
+	node.compile |= node.definition.compiles != null;
+	
+	return read;
+    }
+    
+    
+    /**
+     * Undoes additions to a node's children
+     * 
+     * @param  node  The node
+     * @param  mark  The number of children to keep
+     */
+    protected static void truncate(final ParseTree node, final int mark)
+    {
+	final ArrayList<ParseTree> children = node.children;
+	for (int i = children.size() - 1; i >= mark; i--)
+	    children.remove(i);
+    }
+    
+    
+    
+    /**
+     * Gets the number of captures on a node's named capture stack
+     * 
+     * @param   node  The node
+     * @return        The number of captures, to which the stack can be truncated with {@link #discard(ParseTree, int)}
+     */
+    protected static int captures(final ParseTree node)
+    {
+	return node.context.captureStack.size();
+    }
+    
+    
+    /**
+     * Pushes an incomplete capture onto a node's named capture stack
+     * 
+     * @param   node   The node
+     * @param   slot   The slot of the capture's name
+     * @param   start  The start of the capture
+     * @return         The index of the capture
+     */
+    protected static int capture(final ParseTree node, final int slot, final int start)
+    {
+	return node.context.captureStack.push(slot, start);
+    }
+    
+    
+    /**
+     * Completes a capture on a node's named capture stack
+     * 
+     * @param  node     The node
+     * @param  capture  The index of the capture
+     * @param  end      The end of the capture
+     */
+    protected static void complete(final ParseTree node, final int capture, final int end)
+    {
+	node.context.captureStack.complete(capture, end);
+    }
+    
+    
+    /**
+     * Undoes additions to a node's named capture stack
+     * 
+     * @param  node  The node
+     * @param  mark  The number of captures to keep
+     */
+    protected static void discard(final ParseTree node, final int mark)
+    {
+	node.context.captureStack.truncate(mark);
+    }
+    
+}
@@ -0,0 +1,138 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+
+
+/**
+ * <p>Compiled alternation with a dispatch table from the next character to the alternatives that can pass on it</p>
+ * <p>
+ *   The alternatives are still tried in order, so the first alternative that passes is used,
+ *   but alternatives that cannot pass on the next character are never tried.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class DispatchedAlternation extends JCBNFAlternation
+{
+    //Has default constructor
+    
+    
+    
+    /**
+     * The alternatives
+     */
+    GrammarElement[] alternatives = null;
+    
+    /**
+     * The FIRST set of each alternative
+     */
+    private CodePointSet[] first = null;
+    
+    /**
+     * Whether each alternative is nullable
+     */
+    private boolean[] nullable = null;
+    
+    /**
+     * The indices of the alternatives that can pass on each Latin-1 character, in order
+     */
+    private int[][] table = null;
+    
+    /**
+     * The indices of the alternatives that can pass at the end of the data, in order
+     */
+    int[] atEnd = null;
+    
+    
+    
+    /**
+     * Builds the dispatch table
+     * 
+     * @param  sets  The lookahead analysis of the grammar
+     */
+    void prepare(final FirstSets sets)
+    {
+	final int n = this.elements.size();
+	this.alternatives = this.elements.toArray(new GrammarElement[n]);
+	this.first = new CodePointSet[n];
+	this.nullable = new boolean[n];
+	
+	int nullables = 0;
+	for (int i = 0; i < n; i++)
+	{
+	    this.first[i] = sets.first(this.alternatives[i]);
+	    if (this.nullable[i] = sets.nullable(this.alternatives[i]))
+		nullables++;
+	}
+	
+	this.atEnd = new int[nullables];
+	for (int i = 0, j = 0; i < n; i++)
+	    if (this.nullable[i])
+		this.atEnd[j++] = i;
+	
+	this.table = new int[256][];
+	final int[] buf = new int[n];
+	for (int c = 0; c < 256; c++)
+	{
+	    int m = 0;
+	    for (int i = 0; i < n; i++)
+		if (viable(i, c))
+		    buf[m++] = i;
+	    
+	    final int[] list = Arrays.copyOf(buf, m);
+	    this.table[c] = list;
+	    for (int d = 0; d < c; d++) // share identical lists
+		if (Arrays.equals(this.table[d], list))
+		{
+		    this.table[c] = this.table[d];
+		    break;
+		}
+	}
+    }
+    
+    
+    /**
+     * Gets the alternatives that can pass on a character
+     * 
+     * @param   next  The next character
+     * @return        The indices of the alternatives, in order, <code>null</code> if
+     *                {@link #viable(int, int)} must be used for every alternative
+     */
+    int[] candidates(final int next)
+    {
+	return (next >>> 8) == 0 ? this.table[next] : null;
+    }
+    
+    
+    /**
+     * Tests whether an alternative can pass on a character
+     * 
+     * @param   alternative  The index of the alternative
+     * @param   next         The next character
+     * @return               Whether the alternative can pass
+     */
+    boolean viable(final int alternative, final int next)
+    {
+	return this.nullable[alternative] || this.first[alternative].contains(next);
+    }
+    
+}
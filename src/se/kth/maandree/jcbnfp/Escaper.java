@@ -88,6 +88,20 @@ public class Escaper
 	System.arraycopy(plain, off, data, 0, len);
 	return escape(data);
     }
+
+
+    /**
+     * Escapes special characters in a string so it may be viewed better
+     * 
+     * @param   plain  The string to escape
+     * @param   off    The offset of {@code plain}'s actual content
+     * @param   len    The length of {@code plain}'s actual content
+     * @return         The string escaped
+     */
+    public static byte[] escape(final CodePointText plain, final int off, final int len)
+    {
+	return escape(plain.toArray(off, len));
+    }
     
     
     /**
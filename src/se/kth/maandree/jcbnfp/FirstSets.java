@@ -0,0 +1,258 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+
+/**
+ * <p>Lookahead analysis of a compiled grammar</p>
+ * <p>
+ *   For every grammar element, the set of characters that can be the first character
+ *   it reads (its FIRST set), whether it can pass without reading any characters
+ *   (whether it is nullable), and whether it can make the parsing node panic, are
+ *   determined. A panic makes the node stop parsing early, so everything after an
+ *   element that can panic in a juxtaposition may be skipped.
+ * </p>
+ * <p>
+ *   The analysis is conservative: an element can never pass on a character that is
+ *   not in its FIRST set unless it is nullable, but the converse does not hold.
+ *   Backtracks can match anything, including nothing.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class FirstSets
+{
+    /**
+     * The empty set of characters
+     */
+    static final CodePointSet NONE = new CodePointSet();
+    
+    /**
+     * The set of all characters
+     */
+    static final CodePointSet ALL = new CodePointSet(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    
+    
+    
+    /**
+     * Constructor, analyses every definition in a grammar
+     * 
+     * @param  grammar  The compiled grammar, with all definition references linked
+     */
+    FirstSets(final Grammar grammar)
+    {
+	final int n = grammar.size();
+	this.grammar = grammar;
+	this.first = new CodePointSet[n];
+	this.nullable = new boolean[n];
+	this.panics = new boolean[n];
+	
+	for (int id = 0; id < n; id++)
+	{
+	    this.first[id] = NONE;
+	    this.panics[id] = grammar.getDefinition(id).panics.isEmpty() == false;
+	}
+	
+	for (boolean changed = true; changed;)
+	{
+	    changed = false;
+	    for (int id = 0; id < n; id++)
+	    {
+		final GrammarElement body = grammar.compiled[id];
+		final CodePointSet first = first(body);
+		final boolean nullable = nullable(body);
+		final boolean panics = this.panics[id] || mayPanic(body);
+		
+		if ((first.equals(this.first[id]) == false) || (nullable != this.nullable[id]) || (panics != this.panics[id]))
+		{
+		    this.first[id] = first;
+		    this.nullable[id] = nullable;
+		    this.panics[id] = panics;
+		    changed = true;
+		}
+	    }
+	}
+    }
+    
+    
+    
+    /**
+     * The analysed grammar
+     */
+    private final Grammar grammar;
+    
+    /**
+     * The FIRST set of each definition, by id
+     */
+    private final CodePointSet[] first;
+    
+    /**
+     * Whether each definition, by id, is nullable
+     */
+    private final boolean[] nullable;
+    
+    /**
+     * Whether each definition, by id, can panic
+     */
+    private final boolean[] panics;
+    
+    
+    
+    /**
+     * Gets the FIRST set of a compiled grammar element
+     * 
+     * @param   element  The grammar element
+     * @return           The characters the element can start with
+     */
+    CodePointSet first(final GrammarElement element)
+    {
+	if (element instanceof JCBNFCharacters)
+	    return ((JCBNFCharacters)element).toCodePointSet();
+	if (element instanceof JCBNFString)
+	    return first(((JCBNFString)element).string);
+	if (element instanceof JCBNFWordString)
+	    return first(((JCBNFWordString)element).string);
+	if (element instanceof JCBNFPartialString)
+	    return first(((JCBNFPartialString)element).string);
+	if (element instanceof JCBNFStringTrie)
+	    return ((JCBNFStringTrie)element).first;
+	if ((element instanceof JCBNFCheck) || (element == null))
+	    return NONE;
+	if (element instanceof JCBNFDefinition)
+	    return this.first[((JCBNFDefinition)element).id];
+	if (element instanceof JCBNFStore)
+	    return first(((JCBNFStore)element).element);
+	if (element instanceof JCBNFBoundedRepeation)
+	    return first(((JCBNFBoundedRepeation)element).element);
+	if (element instanceof JCBNFJuxtaposition)
+	{
+	    CodePointSet rc = NONE;
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)element).elements)
+	    {
+		rc = rc.union(first(e));
+		if ((nullable(e) == false) || mayPanic(e))
+		    break;
+	    }
+	    return rc;
+	}
+	if (element instanceof JCBNFAlternation)
+	{
+	    CodePointSet rc = NONE;
+	    for (final GrammarElement e : ((JCBNFAlternation)element).elements)
+		rc = rc.union(first(e));
+	    return rc;
+	}
+	
+	return ALL; // backtracks
+    }
+    
+    
+    /**
+     * Tests whether a compiled grammar element is nullable
+     * 
+     * @param   element  The grammar element
+     * @return           Whether the element can pass without reading any characters
+     */
+    boolean nullable(final GrammarElement element)
+    {
+	if (element instanceof JCBNFCharacters)
+	    return false;
+	if (element instanceof JCBNFString)
+	    return ((JCBNFString)element).string.length == 0;
+	if (element instanceof JCBNFWordString)
+	    return ((JCBNFWordString)element).string.length == 0;
+	if (element instanceof JCBNFPartialString)
+	    return ((JCBNFPartialString)element).string.length == 0;
+	if (element instanceof JCBNFStringTrie)
+	    return ((JCBNFStringTrie)element).hasEmpty();
+	if (element instanceof JCBNFDefinition)
+	    return this.nullable[((JCBNFDefinition)element).id];
+	if (element instanceof JCBNFStore)
+	    return nullable(((JCBNFStore)element).element);
+	if (element instanceof JCBNFBoundedRepeation)
+	    return (((JCBNFBoundedRepeation)element).minCount == 0) || nullable(((JCBNFBoundedRepeation)element).element);
+	if (element instanceof JCBNFJuxtaposition)
+	{
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)element).elements)
+	    {
+		if (nullable(e) == false)
+		    return false;
+		if (mayPanic(e))
+		    break;
+	    }
+	    return true;
+	}
+	if (element instanceof JCBNFAlternation)
+	{
+	    for (final GrammarElement e : ((JCBNFAlternation)element).elements)
+		if (nullable(e))
+		    return true;
+	    return false;
+	}
+	
+	return true; // checks, backtracks and null
+    }
+    
+    
+    /**
+     * Tests whether a compiled grammar element can make the parsing node panic
+     * 
+     * @param   element  The grammar element
+     * @return           Whether the element can panic
+     */
+    boolean mayPanic(final GrammarElement element)
+    {
+	if (element instanceof JCBNFDefinition)
+	    return this.panics[((JCBNFDefinition)element).id];
+	if (element instanceof JCBNFStore)
+	    return mayPanic(((JCBNFStore)element).element);
+	if (element instanceof JCBNFBoundedRepeation)
+	    return mayPanic(((JCBNFBoundedRepeation)element).element);
+	if (element instanceof JCBNFJuxtaposition)
+	{
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)element).elements)
+		if (mayPanic(e))
+		    return true;
+	    return false;
+	}
+	if (element instanceof JCBNFAlternation)
+	{
+	    for (final GrammarElement e : ((JCBNFAlternation)element).elements)
+		if (mayPanic(e))
+		    return true;
+	    return false;
+	}
+	
+	return false;
+    }
+    
+    
+    /**
+     * Gets the FIRST set of a string
+     * 
+     * @param   string  The string
+     * @return          The set of the first character, empty if the string is empty
+     */
+    private static CodePointSet first(final int[] string)
+    {
+	return string.length == 0 ? NONE : new CodePointSet(string[0], string[0]);
+    }
+    
+}
@@ -0,0 +1,458 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+
+
+/**
+ * <p>Compiled grammar, created once from the definitions retrieved from a JCBNF file</p>
+ * <p>
+ *   Compiling a grammar simplifies the grammar of every definition so that only
+ *   bounded repeat (without option), juxtaposition, alternation, store, backtracks
+ *   (with and without replacements), definitions and atoms are used. Characters,
+ *   with their exceptions, are folded into a single set of characters. The compiled
+ *   grammar is never modified, and can thus be shared by any number of parsers.
+ * </p>
+ * <p>
+ *   Adjacent alternatives that are strings or word strings are merged into a trie,
+ *   and the FIRST set and nullability of every element is then determined, so that
+ *   alternations only try the alternatives that can pass on the next character.
+ * </p>
+ * <p>
+ *   Every definition is given a dense index, its id, that can be used to index
+ *   per-definition tables, and references to definitions are linked to their
+ *   definition and id so no name lookups are needed while parsing. Likewise, every
+ *   capture name is given a dense index, its slot, which stores and backtracks are
+ *   linked to.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class Grammar
+{
+    /**
+     * Constructor
+     * 
+     * @param  definitions  Definition map, as returned by {@link GrammarParser#parseGrammar(java.io.InputStream)}
+     * 
+     * @throws  UndefiniedDefinitionException  If the JCBNF file is refering to undefinied definitions
+     */
+    public Grammar(final HashMap<String, Definition> definitions) throws UndefiniedDefinitionException
+    {
+	this.definitions = definitions;
+	
+	final String[] names = definitions.keySet().toArray(new String[definitions.size()]);
+	Arrays.sort(names);
+	
+	final int n = names.length;
+	this.byId = new Definition[n];
+	this.compiled = new GrammarElement[n];
+	for (int i = 0; i < n; i++)
+	{
+	    this.ids.put(names[i], Integer.valueOf(i));
+	    this.definitionIds.put(this.byId[i] = definitions.get(names[i]), Integer.valueOf(i));
+	}
+	
+	final TreeSet<String> undefinied = new TreeSet<String>();
+	for (int i = 0; i < n; i++)
+	    this.compiled[i] = compile(this.byId[i].definition, undefinied);
+	
+	if (undefinied.isEmpty() == false)
+	    throw new UndefiniedDefinitionException(undefinied.toArray(new String[undefinied.size()]));
+	
+	this.slotNames = new String[this.slots.size()];
+	for (final Map.Entry<String, Integer> entry : this.slots.entrySet())
+	    this.slotNames[entry.getValue().intValue()] = entry.getKey();
+	
+	this.captures = new boolean[n];
+	for (int i = 0; i < n; i++)
+	    this.captures[i] = hasStore(this.compiled[i]);
+	
+	this.firstSets = new FirstSets(this);
+	for (final DispatchedAlternation alternation : this.alternations)
+	    alternation.prepare(this.firstSets);
+	
+	final ArrayList<String> nullableRepeats = new ArrayList<String>();
+	for (int i = 0; i < n; i++)
+	    if (hasNullableRepeat(this.compiled[i]))
+		nullableRepeats.add(names[i]);
+	this.nullableRepeats = nullableRepeats.toArray(new String[nullableRepeats.size()]);
+    }
+    
+    
+    
+    /**
+     * Definition map
+     */
+    public final HashMap<String, Definition> definitions;
+    
+    /**
+     * The definitions, by id
+     */
+    private final Definition[] byId;
+    
+    /**
+     * The compiled grammar of each definition, by id
+     */
+    final GrammarElement[] compiled;
+    
+    /**
+     * Lookahead analysis of the compiled grammar
+     */
+    final FirstSets firstSets;
+    
+    /**
+     * The names of the definitions that contain an unbounded repeat of a nullable element
+     */
+    private final String[] nullableRepeats;
+    
+    /**
+     * Whether each definition, by id, contains stores, not counting referenced definitions
+     */
+    final boolean[] captures;
+    
+    /**
+     * The capture names, by slot
+     */
+    final String[] slotNames;
+    
+    /**
+     * All compiled alternations
+     */
+    private final ArrayList<DispatchedAlternation> alternations = new ArrayList<DispatchedAlternation>();
+    
+    /**
+     * Map from definition names to ids
+     */
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    
+    /**
+     * Map from definitions to ids
+     */
+    private final IdentityHashMap<Definition, Integer> definitionIds = new IdentityHashMap<Definition, Integer>();
+    
+    /**
+     * Map from capture names to slots
+     */
+    private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    
+    /**
+     * The grammar compiled into Java bytecode, <code>null</code> until needed
+     */
+    private CompiledParser compiledParser = null;
+    
+    /**
+     * The grammar flattened into instructions, <code>null</code> until needed
+     */
+    private Instructions instructions = null;
+    
+    
+    
+    /**
+     * Gets the number of definitions, ids are from zero up to, but excluding, this number
+     * 
+     * @return  The number of definitions
+     */
+    public int size()
+    {
+	return this.byId.length;
+    }
+    
+    
+    /**
+     * Gets the id of a definition
+     * 
+     * @param   name  The name of the definition
+     * @return        The id of the definition, <code>-1</code> if undefinied
+     */
+    public int getId(final String name)
+    {
+	final Integer id = this.ids.get(name);
+	return id == null ? -1 : id.intValue();
+    }
+    
+    
+    /**
+     * Gets the id of a definition
+     * 
+     * @param   definition  The definition
+     * @return              The id of the definition, <code>-1</code> if not in the grammar
+     */
+    public int getId(final Definition definition)
+    {
+	final Integer id = this.definitionIds.get(definition);
+	return id == null ? -1 : id.intValue();
+    }
+    
+    
+    /**
+     * Gets the slot of a capture name, assigning the next slot if it has none
+     * 
+     * @param   name  The capture name
+     * @return        The slot of the capture name
+     */
+    private int getSlot(final String name)
+    {
+	final Integer slot = this.slots.get(name);
+	if (slot != null)
+	    return slot.intValue();
+	
+	final int rc = this.slots.size();
+	this.slots.put(name, Integer.valueOf(rc));
+	return rc;
+    }
+    
+    
+    /**
+     * Gets a definition by its id
+     * 
+     * @param   id  The id of the definition
+     * @return      The definition
+     */
+    public Definition getDefinition(final int id)
+    {
+	return this.byId[id];
+    }
+    
+    
+    /**
+     * Gets the definitions that contain an unbounded repeat whose element is nullable, such as
+     * <code>{[x]}</code>; such a repeat passes forever without reading anything, so the parsing
+     * engines stop it at the first repetition that does not read anything
+     * 
+     * @return  The names of the definitions, in alphabetical order
+     */
+    public String[] getNullableRepeats()
+    {
+	return this.nullableRepeats.clone();
+    }
+    
+    
+    /**
+     * Gets the grammar compiled into Java bytecode, it is compiled the first time it is needed
+     * 
+     * @return  The parser generated for the grammar
+     * 
+     * @throws  UnsupportedOperationException  If no Java compiler is available
+     * @throws  IllegalStateException          If the generated parser could not be compiled or loaded
+     */
+    synchronized CompiledParser getCompiledParser()
+    {
+	if (this.compiledParser == null)
+	    this.compiledParser = GrammarCompiler.compile(this);
+	return this.compiledParser;
+    }
+    
+    
+    /**
+     * Gets the grammar flattened into instructions, it is assembled the first time it is needed
+     * 
+     * @return  The instructions of the grammar
+     */
+    synchronized Instructions getInstructions()
+    {
+	if (this.instructions == null)
+	    this.instructions = new Instructions(this);
+	return this.instructions;
+    }
+    
+    
+    /**
+     * Tests whether a grammar element contains a store, not counting referenced definitions
+     * 
+     * @param   element  The grammar element
+     * @return           Whether the grammar element contains a store
+     */
+    static boolean hasStore(final GrammarElement element)
+    {
+	if (element instanceof JCBNFStore)
+	    return true;
+	if (element instanceof JCBNFBoundedRepeation)
+	    return hasStore(((JCBNFBoundedRepeation)element).element);
+	if (element instanceof JCBNFJuxtaposition)
+	{
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)element).elements)
+		if (hasStore(e))
+		    return true;
+	}
+	else if (element instanceof JCBNFAlternation)
+	    for (final GrammarElement e : ((JCBNFAlternation)element).elements)
+		if (hasStore(e))
+		    return true;
+	return false;
+    }
+    
+    
+    /**
+     * Tests whether a grammar element contains an unbounded repeat of a nullable element, not counting referenced definitions
+     * 
+     * @param   element  The grammar element
+     * @return           Whether the grammar element contains an unbounded repeat of a nullable element
+     */
+    private boolean hasNullableRepeat(final GrammarElement element)
+    {
+	if (element instanceof JCBNFStore)
+	    return hasNullableRepeat(((JCBNFStore)element).element);
+	if (element instanceof JCBNFBoundedRepeation)
+	{
+	    final JCBNFBoundedRepeation repeat = (JCBNFBoundedRepeation)element;
+	    return ((repeat.maxCount < 0) && this.firstSets.nullable(repeat.element)) || hasNullableRepeat(repeat.element);
+	}
+	if (element instanceof JCBNFJuxtaposition)
+	{
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)element).elements)
+		if (hasNullableRepeat(e))
+		    return true;
+	}
+	else if (element instanceof JCBNFAlternation)
+	    for (final GrammarElement e : ((JCBNFAlternation)element).elements)
+		if (hasNullableRepeat(e))
+		    return true;
+	return false;
+    }
+    
+    
+    /**
+     * Compiles a grammar element, and its subelements, into a new simplified grammar element
+     * 
+     * @param   element     The grammar element
+     * @param   undefinied  Set to which undefinied definitions are added
+     * @return              The grammar element simplified
+     */
+    private GrammarElement compile(final GrammarElement element, final Set<String> undefinied)
+    {
+	GrammarElement elem = element;
+	
+	for (;;)
+	    if (elem instanceof JCBNFGroup)
+		elem = ((JCBNFGroup)elem).element;
+	    else if ((elem instanceof JCBNFJuxtaposition) && (((JCBNFJuxtaposition)elem).elements.size() == 1))
+		elem = ((JCBNFJuxtaposition)elem).elements.get(0);
+	    else if ((elem instanceof JCBNFAlternation) && (((JCBNFAlternation)elem).elements.size() == 1))
+		elem = ((JCBNFAlternation)elem).elements.get(0);
+	    else
+		break;
+	
+	if (elem instanceof JCBNFOption)
+	{
+	    final JCBNFBoundedRepeation rc = new JCBNFBoundedRepeation(0, 1);
+	    rc.element = compile(((JCBNFOption)elem).element, undefinied);
+	    return rc;
+	}
+	if (elem instanceof JCBNFRepeation)
+	{
+	    final JCBNFBoundedRepeation rc = new JCBNFBoundedRepeation(1, -1);
+	    rc.element = compile(((JCBNFRepeation)elem).element, undefinied);
+	    return rc;
+	}
+	if (elem instanceof JCBNFBoundedRepeation)
+	{
+	    final JCBNFBoundedRepeation e = (JCBNFBoundedRepeation)elem;
+	    final JCBNFBoundedRepeation rc = new JCBNFBoundedRepeation(e.minCount, e.maxCount);
+	    if (e.option == null)
+		rc.element = compile(e.element, undefinied);
+	    else
+	    {
+		final JCBNFJuxtaposition juxta = new JCBNFJuxtaposition();
+		final JCBNFBoundedRepeation opt = new JCBNFBoundedRepeation(0, -1);
+		opt.element = compile(e.option, undefinied);
+		juxta.elements.add(opt);
+		juxta.elements.add(compile(e.element, undefinied));
+		rc.element = juxta;
+	    }
+	    return rc;
+	}
+	if (elem instanceof JCBNFJuxtaposition)
+	{
+	    final JCBNFJuxtaposition rc = new JCBNFJuxtaposition();
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)elem).elements)
+		rc.elements.add(compile(e, undefinied));
+	    return rc;
+	}
+	if (elem instanceof JCBNFAlternation)
+	{
+	    final DispatchedAlternation rc = new DispatchedAlternation();
+	    final ArrayList<GrammarElement> strings = new ArrayList<GrammarElement>();
+	    for (final GrammarElement e : ((JCBNFAlternation)elem).elements)
+	    {
+		final GrammarElement c = compile(e, undefinied);
+		if ((c instanceof JCBNFString) || (c instanceof JCBNFWordString))
+		{
+		    strings.add(c);
+		    continue;
+		}
+		mergeStrings(strings, rc.elements);
+		rc.elements.add(c);
+	    }
+	    mergeStrings(strings, rc.elements);
+	    
+	    if (rc.elements.size() == 1)
+		return rc.elements.get(0);
+	    this.alternations.add(rc);
+	    return rc;
+	}
+	if (elem instanceof JCBNFStore)
+	{
+	    final String name = ((JCBNFStore)elem).name;
+	    final JCBNFStore rc = new JCBNFStore(name, getSlot(name));
+	    rc.element = compile(((JCBNFStore)elem).element, undefinied);
+	    return rc;
+	}
+	if (elem instanceof JCBNFDefinition)
+	{
+	    final String name = ((JCBNFDefinition)elem).name;
+	    final int id = getId(name);
+	    if (id < 0)
+	    {
+		undefinied.add(name);
+		return elem;
+	    }
+	    return new JCBNFDefinition(name, id, this.byId[id]);
+	}
+	if (elem instanceof JCBNFBacktrack)
+	{
+	    final JCBNFBacktrack e = (JCBNFBacktrack)elem;
+	    return new JCBNFBacktrack(e.name, e.replacee, e.replacer, getSlot(e.name));
+	}
+	if (elem instanceof JCBNFCharacters)
+	    return new JCBNFCharacters.JCBNFCharacterSet((JCBNFCharacters)elem);
+	
+	return elem; // other atoms are never modified
+    }
+    
+    
+    /**
+     * Adds a run of adjacent alternatives that are strings or word strings to a compiled alternation,
+     * merged into a trie if there are more than one
+     * 
+     * @param  strings       The run of alternatives, it is emptied
+     * @param  alternatives  The alternatives of the compiled alternation
+     */
+    private static void mergeStrings(final ArrayList<GrammarElement> strings, final Vector<GrammarElement> alternatives)
+    {
+	if (strings.size() > 1)
+	    alternatives.add(new JCBNFStringTrie(strings.toArray(new GrammarElement[strings.size()])));
+	else
+	    alternatives.addAll(strings);
+	strings.clear();
+    }
+    
+}
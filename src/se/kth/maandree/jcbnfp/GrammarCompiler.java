@@ -0,0 +1,1036 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import javax.tools.*;
+
+
+/**
+ * <p>Compiles grammars into Java bytecode at runtime</p>
+ * <p>
+ *   Java source for a subclass of {@link CompiledParser} is generated for a compiled grammar,
+ *   with one method for each definition, and one method for each bounded repeat, juxtaposition,
+ *   alternation and store. Atoms are inlined, strings are compared character by character and
+ *   sets of characters are kept in fields of the generated class, so that the JIT compiler can
+ *   optimise the parser of a grammar as it would optimise a hand-written recursive descent parser.
+ *   Captures are pushed onto the named capture stack of the node, and are only undone by the
+ *   methods for grammar elements that contains stores.
+ * </p>
+ * <p>
+ *   The source is compiled in memory with the system Java compiler, and the class is loaded by a
+ *   class loader of its own. The parser builds exactly the same tree as
+ *   {@link ParseTree#parse(CodePointText, int)}, but it cannot be traced.
+ * </p>
+ * <p>
+ *   Subclasses may generate the source for another runtime by overriding the methods that
+ *   generate the parts that use the runtime, see {@link StandaloneGrammarCompiler}.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class GrammarCompiler
+{
+    /**
+     * The name of the generated class
+     */
+    private static final String CLASS_NAME = "CompiledGrammar";
+    
+    /**
+     * The longest string that is compared without a loop
+     */
+    private static final int UNROLL = 4;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  grammar  The compiled grammar
+     */
+    GrammarCompiler(final Grammar grammar)
+    {
+	this.grammar = grammar;
+	this.called = new boolean[grammar.size()];
+    }
+    
+    
+    
+    /**
+     * The compiled grammar
+     */
+    protected final Grammar grammar;
+    
+    /**
+     * The grammar elements that the generated parser looks up at runtime, by index
+     */
+    private final ArrayList<GrammarElement> elements = new ArrayList<GrammarElement>();
+    
+    /**
+     * Map from sets of characters to the fields in the generated class that hold them
+     */
+    private final HashMap<CodePointSet, String> sets = new HashMap<CodePointSet, String>();
+    
+    /**
+     * Whether a method that parses a child node has been generated, for each definition by id
+     */
+    private final boolean[] called;
+    
+    /**
+     * The field declarations of the generated class
+     */
+    protected final StringBuilder fields = new StringBuilder();
+    
+    /**
+     * The field initialisations in the constructor of the generated class
+     */
+    private final StringBuilder initialisations = new StringBuilder();
+    
+    /**
+     * The methods of the generated class
+     */
+    protected final StringBuilder methods = new StringBuilder();
+    
+    /**
+     * The number of generated string constants
+     */
+    private int strings = 0;
+    
+    /**
+     * The number of generated methods for grammar elements
+     */
+    private int methodCount = 0;
+    
+    
+    
+    /**
+     * Compiles a grammar into a parser
+     * 
+     * @param   grammar  The compiled grammar
+     * @return           The parser, it can be shared by any number of threads
+     * 
+     * @throws  UnsupportedOperationException  If no Java compiler is available
+     * @throws  IllegalStateException          If the generated parser could not be compiled or loaded,
+     *                                         the message includes the compiler's diagnostics
+     */
+    static CompiledParser compile(final Grammar grammar)
+    {
+	final GrammarCompiler compiler = new GrammarCompiler(grammar);
+	final String source = compiler.generate();
+	final GrammarElement[] elements = compiler.elements.toArray(new GrammarElement[compiler.elements.size()]);
+	
+	try
+	{
+	    final Class<?> parser = load(CLASS_NAME, source);
+	    return (CompiledParser)(parser.getConstructor(Grammar.class, GrammarElement[].class).newInstance(grammar, elements));
+	}
+	catch (final ReflectiveOperationException err)
+	{
+	    throw new IllegalStateException("Generated parser could not be loaded", err);
+	}
+    }
+    
+    
+    /**
+     * Generates the source of the parser
+     * 
+     * @return  The source of the generated class
+     */
+    String generate()
+    {
+	final StringBuilder dispatch = new StringBuilder();
+	
+	for (int id = 0, n = this.grammar.size(); id < n; id++)
+	{
+	    final GrammarElement body = this.grammar.compiled[id];
+	    
+	    final StringBuilder m = new StringBuilder();
+	    m.append("    // " + comment(this.grammar.getDefinition(id).name) + "\n");
+	    m.append(declaration("d" + id, parameters()));
+	    m.append("    {\n");
+	    m.append(step("off"));
+	    if (this.grammar.captures[id])
+	    {
+		m.append("        final int stored = captures(n);\n");
+		m.append("        return close(n, off, " + expr(body, "off") + ", stored);\n");
+	    }
+	    else
+		m.append("        return close(n, off, " + expr(body, "off") + ", -1);\n");
+	    m.append("    }\n\n");
+	    this.methods.append(m);
+	    
+	    dispatch.append("            case " + id + ":  return d" + id + "(node, data, off);\n");
+	}
+	
+	return assemble(dispatch.toString());
+    }
+    
+    
+    /**
+     * Generates the source of the class, once the methods have been generated
+     * 
+     * @param   dispatch  The cases of a switch-statement on <code>id</code> that parses
+     *                    <code>node</code> for the definition with that id
+     * @return            The source of the generated class
+     */
+    protected String assemble(final String dispatch)
+    {
+	final StringBuilder source = new StringBuilder();
+	source.append("import se.kth.maandree.jcbnfp.*;\n");
+	source.append("import se.kth.maandree.jcbnfp.elements.*;\n");
+	source.append("import java.util.*;\n\n");
+	source.append("public final class " + CLASS_NAME + " extends CompiledParser\n");
+	source.append("{\n");
+	source.append(this.fields);
+	source.append("\n");
+	source.append("    public " + CLASS_NAME + "(final Grammar grammar, final GrammarElement[] elements)\n");
+	source.append("    {\n");
+	source.append("        super(grammar, elements);\n");
+	source.append(this.initialisations);
+	source.append("    }\n\n");
+	source.append("    @Override\n");
+	source.append("    protected int definition(final int id, final ParseTree node, final CodePointText data, final int off)\n");
+	source.append("    {\n");
+	source.append("        switch (id)\n");
+	source.append("        {\n");
+	source.append(dispatch);
+	source.append("            default:  return -1;\n");
+	source.append("        }\n");
+	source.append("    }\n\n");
+	source.append(this.methods);
+	source.append("}\n");
+	return source.toString();
+    }
+    
+    
+    
+    /**
+     * Gets the modifiers of the generated methods
+     * 
+     * @return  The modifiers of the generated methods
+     */
+    protected String modifiers()
+    {
+	return "private";
+    }
+    
+    
+    /**
+     * Gets the type of the nodes in the generated source
+     * 
+     * @return  The type of the nodes
+     */
+    protected String nodeType()
+    {
+	return "ParseTree";
+    }
+    
+    
+    /**
+     * Gets the type of the data in the generated source
+     * 
+     * @return  The type of the data
+     */
+    protected String textType()
+    {
+	return "CodePointText";
+    }
+    
+    
+    /**
+     * Generates an expression that evaluates to the length of the data
+     * 
+     * @return  The expression
+     */
+    protected String length()
+    {
+	return "data.length()";
+    }
+    
+    
+    /**
+     * Generates an expression that evaluates to a character in the data
+     * 
+     * @param   index  The expression of the index of the character
+     * @return         The expression
+     */
+    protected String at(final String index)
+    {
+	return "data.get(" + index + ")";
+    }
+    
+    
+    /**
+     * Generates the statement, at the start of the method of a definition, that
+     * checks the limits of the parse
+     * 
+     * @param   off  The variable with the offset in the data
+     * @return       The statement, with indentation and a line break
+     */
+    protected String step(final String off)
+    {
+	return "        step(n, " + off + ");\n";
+    }
+    
+    
+    /**
+     * Generates the parameter list of the methods that parses grammar elements
+     * 
+     * @return  The parameter list
+     */
+    protected String parameters()
+    {
+	return "final " + nodeType() + " n, final " + textType() + " data, final int off";
+    }
+    
+    
+    /**
+     * Generates the declaration of a method that returns an <code>int</code>
+     * 
+     * @param   name        The name of the method
+     * @param   parameters  The parameter list of the method
+     * @return              The declaration, with a line break but without the body
+     */
+    protected String declaration(final String name, final String parameters)
+    {
+	return "    " + modifiers() + " int " + name + "(" + parameters + ")\n";
+    }
+    
+    
+    /**
+     * Gets a name for a generated method
+     * 
+     * @param   prefix  The prefix of the name
+     * @return          The name of the method
+     */
+    protected String newMethod(final String prefix)
+    {
+	return prefix + this.methodCount++;
+    }
+    
+    
+    /**
+     * Generates a constant that holds a string
+     * 
+     * @param   string  The string
+     * @return          The name of the constant
+     */
+    protected String constant(final int[] string)
+    {
+	final String constant = "t" + this.strings++;
+	final StringBuilder value = new StringBuilder();
+	for (int i = 0, n = string.length; i < n; i++)
+	    value.append(i == 0 ? "" : ", ").append(string[i]);
+	this.fields.append("    private static final int[] " + constant + " = { " + value + " };\n");
+	return constant;
+    }
+    
+    
+    
+    /**
+     * Generates an expression that parses a grammar element, it evaluates to the end
+     * of the element in the data, or <code>-1</code> if it did not pass
+     * 
+     * @param   element  The grammar element
+     * @param   off      The variable with the offset in the data
+     * @return           The expression
+     */
+    protected String expr(final GrammarElement element, final String off)
+    {
+	if (element == null)
+	    return off;
+	
+	if (element instanceof JCBNFCharacters.JCBNFCharacterSet)
+	    return characters((JCBNFCharacters)element, off);
+	if (element instanceof JCBNFString)
+	    return string(((JCBNFString)element).string, off);
+	if ((element instanceof JCBNFWordString) || (element instanceof JCBNFStringTrie) || (element instanceof JCBNFPartialString) ||
+	    (element instanceof JCBNFCharacters) || (element instanceof JCBNFCheck))
+	    return atom(element, off);
+	
+	if (element instanceof JCBNFBacktrack)
+	    return backtrack((JCBNFBacktrack)element, off);
+	if (element instanceof JCBNFDefinition)
+	    return call(((JCBNFDefinition)element).id) + "(n, data, " + off + ")";
+	
+	if (element instanceof JCBNFBoundedRepeation)
+	{
+	    final int min = ((JCBNFBoundedRepeation)element).minCount;
+	    final int max = ((JCBNFBoundedRepeation)element).maxCount;
+	    final GrammarElement atom = ((JCBNFBoundedRepeation)element).element;
+	    
+	    if (((max < 0) || (max >= min)) && ((atom instanceof JCBNFCharacters) || (atom instanceof JCBNFString) || (atom instanceof JCBNFWordString)))
+		if (atom instanceof JCBNFCharacters.JCBNFCharacterSet)
+		    return "span(n, " + set((JCBNFCharacters)atom) + ", data, " + off + ", " + min + ", " + max + ")";
+		else
+		    return scan(atom, off, min, max);
+	}
+	
+	return method(element) + "(n, data, " + off + ")";
+    }
+    
+    
+    /**
+     * Generates an expression that parses an atom that is not a set of characters or a string
+     * 
+     * @param   element  The atom
+     * @param   off      The variable with the offset in the data
+     * @return           The expression
+     */
+    protected String atom(final GrammarElement element, final String off)
+    {
+	return "atom(" + index(element) + ", data, " + off + ")";
+    }
+    
+    
+    /**
+     * Generates an expression that parses a set of characters
+     * 
+     * @param   element  The set of characters
+     * @param   off      The variable with the offset in the data
+     * @return           The expression
+     */
+    protected String characters(final JCBNFCharacters element, final String off)
+    {
+	return "(" + off + " < " + length() + " && " + set(element) + ".contains(" + at(off) + ") ? " + off + " + 1 : -1)";
+    }
+    
+    
+    /**
+     * Generates an expression that parses a string
+     * 
+     * @param   string  The string
+     * @param   off     The variable with the offset in the data
+     * @return          The expression
+     */
+    protected String string(final int[] string, final String off)
+    {
+	final int n = string.length;
+	
+	if (n > UNROLL)
+	    return "(matches(data, " + off + ", " + constant(string) + ") ? " + off + " + " + n + " : -1)";
+	
+	final StringBuilder rc = new StringBuilder();
+	rc.append("(" + off + " + " + n + " < " + length());
+	for (int i = 0; i < n; i++)
+	    rc.append(" && " + at(off + " + " + i) + " == " + string[i]);
+	rc.append(" ? " + off + " + " + n + " : -1)");
+	return rc.toString();
+    }
+    
+    
+    /**
+     * Generates an expression that parses a bounded repeat of an atom that always reads
+     * at least one character when it passes, but is not a set of characters
+     * 
+     * @param   atom  The repeated atom, a {@link JCBNFCharacters}, {@link JCBNFString} or {@link JCBNFWordString}
+     * @param   off   The variable with the offset in the data
+     * @param   min   The minimum number of repetitions
+     * @param   max   The maximum number of repetitions, <code>-1</code> for infinity
+     * @return        The expression
+     */
+    protected String scan(final GrammarElement atom, final String off, final int min, final int max)
+    {
+	return "scan(" + index(atom) + ", n, data, " + off + ", " + min + ", " + max + ")";
+    }
+    
+    
+    /**
+     * Generates an expression that parses a backtrack
+     * 
+     * @param   element  The backtrack
+     * @param   off      The variable with the offset in the data
+     * @return           The expression
+     */
+    protected String backtrack(final JCBNFBacktrack element, final String off)
+    {
+	return "backtrack(" + index(element) + ", n, data, " + off + ")";
+    }
+    
+    
+    /**
+     * Gets the field that holds a set of characters, and generates it if needed
+     * 
+     * @param   element  The set of characters
+     * @return           The name of the field
+     */
+    protected String set(final JCBNFCharacters element)
+    {
+	final CodePointSet set = element.toCodePointSet();
+	String field = this.sets.get(set);
+	if (field == null)
+	{
+	    this.sets.put(set, field = "s" + this.sets.size());
+	    declareSet(field, element);
+	}
+	return field;
+    }
+    
+    
+    /**
+     * Generates the field that holds a set of characters
+     * 
+     * @param  field    The name of the field
+     * @param  element  The set of characters
+     */
+    protected void declareSet(final String field, final JCBNFCharacters element)
+    {
+	this.fields.append("    private final CodePointSet " + field + ";\n");
+	this.initialisations.append("        this." + field + " = set(" + index(element) + ");\n");
+    }
+    
+    
+    /**
+     * Gets the method that parses a child node for a definition, and generates it if needed
+     * 
+     * @param   id  The id of the definition
+     * @return      The name of the method
+     */
+    private String call(final int id)
+    {
+	final String name = "c" + id;
+	if (this.called[id])
+	    return name;
+	this.called[id] = true;
+	
+	this.methods.append(declaration(name, parameters()) + "    {\n" + callBody(id) + "    }\n\n");
+	return name;
+    }
+    
+    
+    /**
+     * Generates the body of the method that parses a child node for a definition
+     * 
+     * @param   id  The id of the definition
+     * @return      The body of the method, without braces
+     */
+    protected String callBody(final int id)
+    {
+	final StringBuilder m = new StringBuilder();
+	m.append("        final ParseTree child = child(n, " + id + ");\n");
+	m.append("        final Object memoised = recall(n, " + id + ", off);\n");
+	m.append("        if (memoised == FAILED)\n");
+	m.append("            return -1;\n");
+	m.append("        if (memoised != null)\n");
+	m.append("            restore(child, memoised);\n");
+	m.append("        else if (d" + id + "(child, data, off) < 0)\n");
+	m.append("        {\n");
+	m.append("            remember(n, " + id + ", off, FAILED);\n");
+	m.append("            return -1;\n");
+	m.append("        }\n");
+	m.append("        else\n");
+	m.append("            remember(n, " + id + ", off, child);\n");
+	m.append("        return adopt(n, child);\n");
+	return m.toString();
+    }
+    
+    
+    /**
+     * Generates an expression that evaluates to the indices of the alternatives of an
+     * alternation that can pass on the next character, in order, or to <code>null</code>
+     * if every alternative must be tested with the expression from {@link #viable(DispatchedAlternation, String)}
+     * 
+     * @param   alternation  The alternation
+     * @return               The expression, using the variable <code>next</code>, which is <code>-1</code> at the end of the data
+     */
+    protected String candidates(final DispatchedAlternation alternation)
+    {
+	return "candidates(" + index(alternation) + ", next)";
+    }
+    
+    
+    /**
+     * Generates an expression that evaluates to whether an alternative of an alternation can pass on the next character
+     * 
+     * @param   alternation  The alternation
+     * @param   alternative  The expression of the index of the alternative
+     * @return               The expression, using the variable <code>next</code>
+     */
+    protected String viable(final DispatchedAlternation alternation, final String alternative)
+    {
+	return "viable(" + index(alternation) + ", " + alternative + ", next)";
+    }
+    
+    
+
+    
+    /**
+     * Generates a method that parses a bounded repeat, juxtaposition, alternation or store
+     * 
+     * @param   element  The grammar element
+     * @return           The name of the method
+     */
+    private String method(final GrammarElement element)
+    {
+	final String name = newMethod("e");
+	final boolean store = Grammar.hasStore(element);
+	
+	final StringBuilder m = new StringBuilder();
+	m.append(declaration(name, parameters()));
+	m.append("    {\n");
+	
+	if (element instanceof JCBNFBoundedRepeation)
+	{
+	    final int min = ((JCBNFBoundedRepeation)element).minCount;
+	    final int max = ((JCBNFBoundedRepeation)element).maxCount;
+	    final GrammarElement g = ((JCBNFBoundedRepeation)element).element;
+	    
+	    m.append("        int o = off;\n");
+	    if (min > 0)
+	    {
+		m.append("        for (int i = 0; i < " + min + "; i++)\n");
+		m.append("            if ((o = " + expr(g, "o") + ") < 0)\n");
+		m.append("                return -1;\n");
+	    }
+	    m.append("        if (n.paniced)\n");
+	    m.append("            return o;\n");
+	    m.append("        for (int i = " + min + "; i != " + max + "; i++)\n");
+	    m.append("        {\n");
+	    if (addsChildren(g))
+		m.append("            final int mark = n.children.size();\n");
+	    if (store)
+		m.append("            final int stored = captures(n);\n");
+	    m.append("            final int r = " + expr(g, "o") + ";\n");
+	    m.append("            if (r < 0)\n");
+	    m.append("            {\n");
+	    if (addsChildren(g))
+		m.append("                truncate(n, mark);\n");
+	    if (store)
+		m.append("                discard(n, stored);\n");
+	    m.append("                break;\n");
+	    m.append("            }\n");
+	    if ((max < 0) && this.grammar.firstSets.nullable(g))
+	    {
+		m.append("            if (r == o)\n");
+		m.append("                return o;\n");
+	    }
+	    m.append("            o = r;\n");
+	    m.append("            if (n.paniced)\n");
+	    m.append("                return o;\n");
+	    m.append("        }\n");
+	    m.append("        return o;\n");
+	}
+	else if (element instanceof JCBNFJuxtaposition)
+	{
+	    final Vector<GrammarElement> elems = ((JCBNFJuxtaposition)element).elements;
+	    
+	    m.append("        int o = off;\n");
+	    for (int i = 0, n = elems.size(); i < n; i++)
+	    {
+		m.append("        if ((o = " + expr(elems.get(i), "o") + ") < 0)\n");
+		m.append("            return -1;\n");
+		if (i + 1 < n)
+		{
+		    m.append("        if (n.paniced)\n");
+		    m.append("            return o;\n");
+		}
+	    }
+	    m.append("        return o;\n");
+	}
+	else if (element instanceof JCBNFAlternation)
+	{
+	    final GrammarElement[] alternatives = element instanceof DispatchedAlternation ? ((DispatchedAlternation)element).alternatives
+						  : ((JCBNFAlternation)element).elements.toArray(new GrammarElement[0]);
+	    final String alternative = alternatives(alternatives);
+	    final String args = "(i, n, data, off))";
+	    final boolean adds = addsChildren(element);
+	    
+	    if (adds)
+		m.append("        final int mark = n.children.size();\n");
+	    if (store)
+		m.append("        final int stored = captures(n);\n");
+	    m.append("        int r;\n");
+	    if (element instanceof DispatchedAlternation)
+	    {
+		final DispatchedAlternation alternation = (DispatchedAlternation)element;
+		m.append("        if (n.paniced == false)\n");
+		m.append("        {\n");
+		m.append("            final int next = off < " + length() + " ? " + at("off") + " : -1;\n");
+		m.append("            final int[] candidates = " + candidates(alternation) + ";\n");
+		m.append("            if (candidates != null)\n");
+		m.append("                for (final int i : candidates)\n");
+		m.append("                {\n");
+		m.append("                    if ((r = " + alternative + args + " >= 0)\n");
+		m.append("                        return r;\n");
+		if (adds)
+		    m.append("                    truncate(n, mark);\n");
+		if (store)
+		    m.append("                    discard(n, stored);\n");
+		m.append("                }\n");
+		m.append("            else\n");
+		m.append("                for (int i = 0; i < " + alternatives.length + "; i++)\n");
+		m.append("                    if (" + viable(alternation, "i") + ")\n");
+		m.append("                    {\n");
+		m.append("                        if ((r = " + alternative + args + " >= 0)\n");
+		m.append("                            return r;\n");
+		if (adds)
+		    m.append("                        truncate(n, mark);\n");
+		if (store)
+		    m.append("                        discard(n, stored);\n");
+		m.append("                    }\n");
+		m.append("            return -1;\n");
+		m.append("        }\n");
+	    }
+	    m.append("        for (int i = 0; i < " + alternatives.length + "; i++)\n");
+	    m.append("        {\n");
+	    m.append("            if ((r = " + alternative + args + " >= 0)\n");
+	    m.append("                return r;\n");
+	    if (adds)
+		m.append("            truncate(n, mark);\n");
+	    if (store)
+		m.append("            discard(n, stored);\n");
+	    m.append("        }\n");
+	    m.append("        return " + (alternatives.length == 0 ? "off" : "-1") + ";\n");
+	}
+	else if (element instanceof JCBNFStore)
+	{
+	    final GrammarElement g = ((JCBNFStore)element).element;
+	    
+	    m.append("        final int c = capture(n, " + ((JCBNFStore)element).slot + ", off);\n");
+	    m.append("        final int r = " + expr(g, "off") + ";\n");
+	    m.append("        if (r < 0)\n");
+	    m.append("            return -1;\n");
+	    m.append("        complete(n, c, r);\n");
+	    m.append("        return r;\n");
+	}
+	else
+	    assert false : "Unrecognised grammar used!";
+	
+	m.append("    }\n\n");
+	this.methods.append(m);
+	return name;
+    }
+    
+    
+    /**
+     * Generates a method that parses one of the alternatives of an alternation, selected by its index
+     * 
+     * @param   alternatives  The alternatives
+     * @return                The name of the method
+     */
+    private String alternatives(final GrammarElement[] alternatives)
+    {
+	final String name = newMethod("a");
+	
+	final StringBuilder m = new StringBuilder();
+	m.append(declaration(name, "final int i, " + parameters()));
+	m.append("    {\n");
+	m.append("        switch (i)\n");
+	m.append("        {\n");
+	for (int i = 0, n = alternatives.length; i < n; i++)
+	{
+	    m.append("            case " + i + ":\n");
+	    m.append("                return " + expr(alternatives[i], "off") + ";\n");
+	}
+	m.append("            default:\n");
+	m.append("                return -1;\n");
+	m.append("        }\n");
+	m.append("    }\n\n");
+	this.methods.append(m);
+	return name;
+    }
+    
+    
+    /**
+     * Gets the index of a grammar element in {@link #elements}, and adds it if needed
+     * 
+     * @param   element  The grammar element
+     * @return           The index of the grammar element
+     */
+    private int index(final GrammarElement element)
+    {
+	for (int i = 0, n = this.elements.size(); i < n; i++)
+	    if (this.elements.get(i) == element)
+		return i;
+	this.elements.add(element);
+	return this.elements.size() - 1;
+    }
+    
+    
+    /**
+     * Makes a string safe to put in a line comment
+     * 
+     * @param   text  The string
+     * @return        The string with all but ASCII letters, digits, hyphens and underscores replaced
+     */
+    private static String comment(final String text)
+    {
+	final StringBuilder rc = new StringBuilder();
+	for (int i = 0, n = text.length(); i < n; i++)
+	{
+	    final char c = text.charAt(i);
+	    final boolean safe = (('a' <= c) && (c <= 'z')) || (('A' <= c) && (c <= 'Z')) || (('0' <= c) && (c <= '9')) || (c == '-') || (c == '_');
+	    rc.append(safe ? c : '?');
+	}
+	return rc.toString();
+    }
+    
+    
+    /**
+     * Tests whether parsing a grammar element can add children to the node, that is,
+     * whether it references a definition
+     * 
+     * @param   element  The grammar element
+     * @return           Whether the grammar element can add children
+     */
+    private static boolean addsChildren(final GrammarElement element)
+    {
+	if (element instanceof JCBNFDefinition)
+	    return true;
+	if (element instanceof JCBNFStore)
+	    return addsChildren(((JCBNFStore)element).element);
+	if (element instanceof JCBNFBoundedRepeation)
+	    return addsChildren(((JCBNFBoundedRepeation)element).element);
+	if (element instanceof JCBNFJuxtaposition)
+	{
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)element).elements)
+		if (addsChildren(e))
+		    return true;
+	}
+	else if (element instanceof JCBNFAlternation)
+	    for (final GrammarElement e : ((JCBNFAlternation)element).elements)
+		if (addsChildren(e))
+		    return true;
+	return false;
+    }
+    
+    
+    /**
+     * Compiles Java source in memory and loads the class
+     * 
+     * @param   name    The name of the class
+     * @param   source  The source of the class
+     * @return          The class
+     * 
+     * @throws  UnsupportedOperationException  If no Java compiler is available
+     * @throws  IllegalStateException          If the generated parser could not be compiled or loaded,
+     *                                         the message includes the compiler's diagnostics
+     */
+    private static Class<?> load(final String name, final String source)
+    {
+	final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+	if (compiler == null)
+	    throw new UnsupportedOperationException("No Java compiler is available, grammars can only be compiled on a JDK");
+	
+	final MemoryFileManager files = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+	final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+	final List<String> options = Arrays.asList("-classpath", classpath(), "-nowarn");
+	final List<JavaFileObject> units = new ArrayList<JavaFileObject>();
+	units.add(new SourceFile(name, source));
+	
+	if (compiler.getTask(null, files, diagnostics, options, null, units).call().booleanValue() == false)
+	    throw new IllegalStateException("Generated parser did not compile: " + diagnostics.getDiagnostics());
+	
+	try
+	{
+	    return new Loader(files.classes).loadClass(name);
+	}
+	catch (final ClassNotFoundException err)
+	{
+	    throw new IllegalStateException("Generated parser could not be loaded", err);
+	}
+    }
+    
+    
+    /**
+     * Gets the class path with which the generated source is compiled
+     * 
+     * @return  The class path
+     */
+    private static String classpath()
+    {
+	final String classpath = System.getProperty("java.class.path");
+	try
+	{
+	    final URL location = CompiledParser.class.getProtectionDomain().getCodeSource().getLocation();
+	    return new File(location.toURI()).getPath() + File.pathSeparator + classpath;
+	}
+	catch (final SecurityException | URISyntaxException | IllegalArgumentException | NullPointerException err)
+	{
+	    return classpath; // not loaded from a file, the class path will have to do
+	}
+    }
+    
+    
+    
+    /**
+     * Java source held in memory
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    private static class SourceFile extends SimpleJavaFileObject
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  name    The name of the class
+	 * @param  source  The source of the class
+	 */
+	public SourceFile(final String name, final String source)
+	{
+	    super(URI.create("string:///" + name.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+	    this.source = source;
+	}
+	
+	
+	
+	/**
+	 * The source of the class
+	 */
+	private final String source;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CharSequence getCharContent(final boolean ignoreEncodingErrors)
+	{
+	    return this.source;
+	}
+	
+    }
+    
+    
+    /**
+     * Compiled class held in memory
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    private static class ClassFile extends SimpleJavaFileObject
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  name  The name of the class
+	 */
+	public ClassFile(final String name)
+	{
+	    super(URI.create("bytes:///" + name.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+	}
+	
+	
+	
+	/**
+	 * The bytecode of the class
+	 */
+	public final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public OutputStream openOutputStream()
+	{
+	    return this.bytes;
+	}
+	
+    }
+    
+    
+    /**
+     * File manager that keeps compiled classes in memory
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  files  The standard file manager, used for everything but compiled classes
+	 */
+	public MemoryFileManager(final StandardJavaFileManager files)
+	{
+	    super(files);
+	}
+	
+	
+	
+	/**
+	 * The compiled classes, by name
+	 */
+	public final HashMap<String, ClassFile> classes = new HashMap<String, ClassFile>();
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public JavaFileObject getJavaFileForOutput(final Location location, final String className, final JavaFileObject.Kind kind, final FileObject sibling)
+	{
+	    final ClassFile file = new ClassFile(className);
+	    this.classes.put(className, file);
+	    return file;
+	}
+	
+    }
+    
+    
+    /**
+     * Class loader for compiled classes held in memory
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    private static class Loader extends ClassLoader
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  classes  The compiled classes, by name
+	 */
+	public Loader(final HashMap<String, ClassFile> classes)
+	{
+	    super(CompiledParser.class.getClassLoader());
+	    this.classes = classes;
+	}
+	
+	
+	
+	/**
+	 * The compiled classes, by name
+	 */
+	private final HashMap<String, ClassFile> classes;
+	
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected Class<?> findClass(final String name) throws ClassNotFoundException
+	{
+	    final ClassFile file = this.classes.get(name);
+	    if (file == null)
+		throw new ClassNotFoundException(name);
+	    
+	    final byte[] code = file.bytes.toByteArray();
+	    return defineClass(name, code, 0, code.length);
+	}
+	
+    }
+    
+}
@@ -46,59 +46,40 @@ public class Highlighter
      */
     public static void main(final String... args)
     {
-	final PrintStream stderr = System.err;
-	final PrintStream stdout = System.out;
-	final PrintStream devNull = new PrintStream(new OutputStream() { public void write(int b) { /* do nothing */ } });
-	
 	final String parseFile = args[0];
 	
-	InputStream gis = null, fis = null;
+	InputStream gis = null;
 	try
 	{
-	    System.setOut(devNull);
-	    System.setErr(devNull);
-	    
 	    gis = new BufferedInputStream(new FileInputStream(new File("./JCBNF/jcbnf")));
 	    final HashMap<String, Definition> defs = GrammarParser.parseGrammar(gis);
 	    
 	    final Parser parser = new Parser(defs, "jcbnf");
-	    fis = new BufferedInputStream(new FileInputStream(new File(parseFile)));
-	    final ParseTree tree = parser.parse(fis);
-	    
-	    System.setOut(stdout);
-	    System.setErr(stderr);
+	    final ParseTree tree = parser.parse(new File(parseFile).toPath());
 	    
 	    if (tree == null)
 		System.out.println("===### Grammar did not match ###===\n\n");
 	    else
-		print(tree, parser.data, new ArrayDeque<String>());
+		print(tree, tree.context.getText(), new ArrayDeque<String>());
 	    System.out.flush();
 	}
 	catch (final SyntaxFileError err)
 	{
-	    System.setOut(stdout);
-	    System.setErr(stderr);
 	    System.err.println("ERROR: " + err.getMessage());
 	    if (err.getCause() != null)
 		err.getCause().printStackTrace(System.err);
 	}
 	catch (final UndefiniedDefinitionException err)
 	{
-	    System.setOut(stdout);
-	    System.setErr(stderr);
 	    System.err.println("ERROR: " + err.getMessage());
 	}
 	catch (final RuntimeException err)
 	{
-	    System.setOut(stdout);
-	    System.setErr(stderr);
 	    System.err.print("ERROR: ");
 	    err.printStackTrace(System.err);
 	}
 	catch (final Throwable err)
 	{
-	    System.setOut(stdout);
-	    System.setErr(stderr);
 	    System.err.println("---SYSTEM ERROR---");
 	    err.printStackTrace(System.err);
 	}
@@ -111,18 +92,11 @@ public class Highlighter
 		catch (final Throwable err)
 		{   //Ignore
 		}
-	    if (fis != null)
-		try
-		{   fis.close();
-		}
-		catch (final Throwable err)
-		{   //Ignore
-		}
 	}
     }
     
     
-    public static void print(final ParseTree node, final int[] data, final ArrayDeque<String> colours)
+    public static void print(final ParseTree node, final CodePointText data, final ArrayDeque<String> colours)
     {
 	final String n = node.definition.name;
 	
@@ -153,8 +127,7 @@ public class Highlighter
 	    {
 		if (s < child.intervalStart)
 		{
-		    final int[] dat = new int[child.intervalStart - s];
-		    System.arraycopy(data, s, dat, 0, dat.length);
+		    final int[] dat = data.toArray(s, child.intervalStart - s);
 		    System.out.print(Util.intArrayToString(dat));
 		}
 		
@@ -163,8 +136,7 @@ public class Highlighter
 	    }
 	    if (s < node.intervalEnd)
 	    {
-		final int[] dat = new int[node.intervalEnd - s];
-		System.arraycopy(data, s, dat, 0, dat.length);
+		final int[] dat = data.toArray(s, node.intervalEnd - s);
 		System.out.print(Util.intArrayToString(dat));
 	    }
 	}
@@ -178,8 +150,7 @@ public class Highlighter
 	else
 	{
 	    System.out.print("\033[1;30m");
-	    final int[] dat = new int[data.length - node.intervalEnd];
-	    System.arraycopy(data, node.intervalEnd, dat, 0, dat.length);
+	    final int[] dat = data.toArray(node.intervalEnd, data.length() - node.intervalEnd);
 	    System.out.print(Util.intArrayToString(dat));
 	    System.out.print("\033[21;39m");
 	}
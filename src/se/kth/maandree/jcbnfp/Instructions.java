@@ -0,0 +1,399 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+
+
+/**
+ * <p>A compiled grammar flattened into an array of instructions</p>
+ * <p>
+ *   Every grammar element is assembled once into an instruction, an opcode followed by its operands,
+ *   and every grammar element that contains other grammar elements refers to them by their addresses
+ *   in the array. Strings, sets of characters and other constants are kept in pools, indexed by an
+ *   operand. The instructions are interpreted by {@link StackEngine} with a switch on the opcode,
+ *   rather than by testing the class of each grammar element that is parsed.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class Instructions
+{
+    /**
+     * Opcode: no grammar element, passes without reading anything; <code>EMPTY</code>
+     */
+    static final int EMPTY = 0;
+    
+    /**
+     * Opcode: string; <code>STRING string</code>
+     */
+    static final int STRING = 1;
+    
+    /**
+     * Opcode: word string; <code>WORD string</code>
+     */
+    static final int WORD = 2;
+    
+    /**
+     * Opcode: partial string; <code>PARTIAL string</code>
+     */
+    static final int PARTIAL = 3;
+    
+    /**
+     * Opcode: trie of strings and word strings; <code>TRIE trie</code>
+     */
+    static final int TRIE = 4;
+    
+    /**
+     * Opcode: set of characters; <code>SET set</code>
+     */
+    static final int SET = 5;
+    
+    /**
+     * Opcode: check; <code>CHECK check</code>
+     */
+    static final int CHECK = 6;
+    
+    /**
+     * Opcode: backtrack; <code>BACKTRACK backtrack</code>
+     */
+    static final int BACKTRACK = 7;
+    
+    /**
+     * Opcode: store; <code>STORE slot element</code>
+     */
+    static final int STORE = 8;
+    
+    /**
+     * Opcode: bounded repeat; <code>REPEAT min max element</code>
+     */
+    static final int REPEAT = 9;
+    
+    /**
+     * Opcode: bounded repeat of a set of characters, string or word string,
+     * that may be parsed in one loop; <code>SCAN min max element</code>
+     */
+    static final int SCAN = 10;
+    
+    /**
+     * Opcode: juxtaposition; <code>JUXTAPOSITION count element...</code>
+     */
+    static final int JUXTAPOSITION = 11;
+    
+    /**
+     * Opcode: alternation; <code>ALTERNATION count element...</code>
+     */
+    static final int ALTERNATION = 12;
+    
+    /**
+     * Opcode: alternation with dispatch tables; <code>DISPATCH alternation count element...</code>
+     */
+    static final int DISPATCH = 13;
+    
+    /**
+     * Opcode: definition reference; <code>DEFINITION id</code>
+     */
+    static final int DEFINITION = 14;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  grammar  The compiled grammar
+     */
+    Instructions(final Grammar grammar)
+    {
+	final int n = grammar.size();
+	this.entries = new int[n];
+	for (int id = 0; id < n; id++)
+	    this.entries[id] = assemble(grammar.compiled[id]);
+	
+	this.code = Arrays.copyOf(this.buffer, this.size);
+	this.sources = this.sourceList.toArray(new GrammarElement[this.sourceList.size()]);
+	this.strings = this.stringList.toArray(new int[this.stringList.size()][]);
+	this.sets = this.setList.toArray(new CodePointSet[this.setList.size()]);
+	this.tries = this.trieList.toArray(new JCBNFStringTrie[this.trieList.size()]);
+	this.checks = this.checkList.toArray(new JCBNFCheck[this.checkList.size()]);
+	this.backtracks = this.backtrackList.toArray(new JCBNFBacktrack[this.backtrackList.size()]);
+	this.alternations = this.alternationList.toArray(new DispatchedAlternation[this.alternationList.size()]);
+	
+	this.buffer = null;
+	this.addresses = null;
+    }
+    
+    
+    
+    /**
+     * The instructions
+     */
+    final int[] code;
+    
+    /**
+     * The address of the instruction of each definition's grammar, by id
+     */
+    final int[] entries;
+    
+    /**
+     * The grammar element of each instruction, by address, for tracing
+     */
+    final GrammarElement[] sources;
+    
+    /**
+     * Pool of strings, for strings, word strings and partial strings
+     */
+    final int[][] strings;
+    
+    /**
+     * Pool of sets of characters
+     */
+    final CodePointSet[] sets;
+    
+    /**
+     * Pool of tries of strings and word strings
+     */
+    final JCBNFStringTrie[] tries;
+    
+    /**
+     * Pool of checks
+     */
+    final JCBNFCheck[] checks;
+    
+    /**
+     * Pool of backtracks
+     */
+    final JCBNFBacktrack[] backtracks;
+    
+    /**
+     * Pool of alternations with dispatch tables
+     */
+    final DispatchedAlternation[] alternations;
+    
+    /**
+     * The instructions while they are assembled
+     */
+    private int[] buffer = new int[256];
+    
+    /**
+     * The number of assembled instruction words
+     */
+    private int size = 0;
+    
+    /**
+     * Map from assembled grammar elements to the address of their instruction
+     */
+    private IdentityHashMap<GrammarElement, Integer> addresses = new IdentityHashMap<GrammarElement, Integer>();
+    
+    /**
+     * The grammar element of each instruction, while they are assembled
+     */
+    private final ArrayList<GrammarElement> sourceList = new ArrayList<GrammarElement>();
+    
+    /**
+     * Pool of strings, while it is assembled
+     */
+    private final ArrayList<int[]> stringList = new ArrayList<int[]>();
+    
+    /**
+     * Pool of sets of characters, while it is assembled
+     */
+    private final ArrayList<CodePointSet> setList = new ArrayList<CodePointSet>();
+    
+    /**
+     * Pool of tries, while it is assembled
+     */
+    private final ArrayList<JCBNFStringTrie> trieList = new ArrayList<JCBNFStringTrie>();
+    
+    /**
+     * Pool of checks, while it is assembled
+     */
+    private final ArrayList<JCBNFCheck> checkList = new ArrayList<JCBNFCheck>();
+    
+    /**
+     * Pool of backtracks, while it is assembled
+     */
+    private final ArrayList<JCBNFBacktrack> backtrackList = new ArrayList<JCBNFBacktrack>();
+    
+    /**
+     * Pool of alternations, while it is assembled
+     */
+    private final ArrayList<DispatchedAlternation> alternationList = new ArrayList<DispatchedAlternation>();
+    
+    
+    
+    /**
+     * Assembles a grammar element, and its subelements, into instructions, unless it already has been
+     * 
+     * @param   element  The grammar element
+     * @return           The address of the grammar element's instruction
+     */
+    private int assemble(final GrammarElement element)
+    {
+	if (element == null)
+	    return emit(null, EMPTY);
+	
+	final Integer assembled = this.addresses.get(element);
+	if (assembled != null)
+	    return assembled.intValue();
+	
+	final int rc;
+	if (element instanceof JCBNFString)
+	    rc = emit(element, STRING, pool(this.stringList, ((JCBNFString)element).string));
+	else if (element instanceof JCBNFWordString)
+	    rc = emit(element, WORD, pool(this.stringList, ((JCBNFWordString)element).string));
+	else if (element instanceof JCBNFPartialString)
+	    rc = emit(element, PARTIAL, pool(this.stringList, ((JCBNFPartialString)element).string));
+	else if (element instanceof JCBNFStringTrie)
+	    rc = emit(element, TRIE, pool(this.trieList, (JCBNFStringTrie)element));
+	else if (element instanceof JCBNFCharacters)
+	    rc = emit(element, SET, pool(this.setList, ((JCBNFCharacters)element).toCodePointSet()));
+	else if (element instanceof JCBNFCheck)
+	    rc = emit(element, CHECK, pool(this.checkList, (JCBNFCheck)element));
+	else if (element instanceof JCBNFBacktrack)
+	    rc = emit(element, BACKTRACK, pool(this.backtrackList, (JCBNFBacktrack)element));
+	else if (element instanceof JCBNFStore)
+	{
+	    final int sub = assemble(((JCBNFStore)element).element);
+	    rc = emit(element, STORE, ((JCBNFStore)element).slot, sub);
+	}
+	else if (element instanceof JCBNFBoundedRepeation)
+	{
+	    final JCBNFBoundedRepeation repeat = (JCBNFBoundedRepeation)element;
+	    final GrammarElement g = repeat.element;
+	    final boolean scan = ((repeat.maxCount < 0) || (repeat.maxCount >= repeat.minCount)) &&
+				 ((g instanceof JCBNFCharacters) || (g instanceof JCBNFString) || (g instanceof JCBNFWordString));
+	    final int sub = assemble(g);
+	    rc = emit(element, scan ? SCAN : REPEAT, repeat.minCount, repeat.maxCount, sub);
+	}
+	else if (element instanceof JCBNFJuxtaposition)
+	    rc = emit(element, JUXTAPOSITION, -1, assemble(((JCBNFJuxtaposition)element).elements));
+	else if (element instanceof DispatchedAlternation)
+	    rc = emit(element, DISPATCH, pool(this.alternationList, (DispatchedAlternation)element),
+		      assemble(((JCBNFAlternation)element).elements));
+	else if (element instanceof JCBNFAlternation)
+	    rc = emit(element, ALTERNATION, -1, assemble(((JCBNFAlternation)element).elements));
+	else if (element instanceof JCBNFDefinition)
+	    rc = emit(element, DEFINITION, ((JCBNFDefinition)element).id);
+	else
+	{
+	    assert false : "Unrecognised grammar used!";
+	    rc = emit(element, EMPTY);
+	}
+	
+	this.addresses.put(element, Integer.valueOf(rc));
+	return rc;
+    }
+    
+    
+    /**
+     * Assembles a list of grammar elements
+     * 
+     * @param   elements  The grammar elements
+     * @return            The number of grammar elements followed by their addresses
+     */
+    private int[] assemble(final List<GrammarElement> elements)
+    {
+	final int n = elements.size();
+	final int[] rc = new int[n + 1];
+	rc[0] = n;
+	for (int i = 0; i < n; i++)
+	    rc[i + 1] = assemble(elements.get(i));
+	return rc;
+    }
+    
+    
+    /**
+     * Appends an instruction
+     * 
+     * @param   element   The grammar element of the instruction
+     * @param   opcode    The opcode of the instruction
+     * @param   operands  The operands of the instruction
+     * @return            The address of the instruction
+     */
+    private int emit(final GrammarElement element, final int opcode, final int... operands)
+    {
+	final int rc = this.size;
+	put(opcode);
+	for (final int operand : operands)
+	    put(operand);
+	
+	while (this.sourceList.size() < this.size)
+	    this.sourceList.add(null);
+	this.sourceList.set(rc, element);
+	return rc;
+    }
+    
+    
+    /**
+     * Appends an instruction with an operand followed by a list of addresses
+     * 
+     * @param   element    The grammar element of the instruction
+     * @param   opcode     The opcode of the instruction
+     * @param   operand    The operand before the list, <code>-1</code> if none
+     * @param   addresses  The number of addresses followed by the addresses
+     * @return             The address of the instruction
+     */
+    private int emit(final GrammarElement element, final int opcode, final int operand, final int[] addresses)
+    {
+	final int rc = this.size;
+	put(opcode);
+	if (operand >= 0)
+	    put(operand);
+	for (final int address : addresses)
+	    put(address);
+	
+	while (this.sourceList.size() < this.size)
+	    this.sourceList.add(null);
+	this.sourceList.set(rc, element);
+	return rc;
+    }
+    
+    
+    /**
+     * Appends an instruction word
+     * 
+     * @param  word  The instruction word
+     */
+    private void put(final int word)
+    {
+	if (this.size == this.buffer.length)
+	    this.buffer = Arrays.copyOf(this.buffer, this.size << 1);
+	this.buffer[this.size++] = word;
+    }
+    
+    
+    /**
+     * Adds a constant to a pool, unless it already is in it
+     * 
+     * @param   <T>       The type of the constants
+     * @param   pool      The pool
+     * @param   constant  The constant
+     * @return            The index of the constant in the pool
+     */
+    private static <T> int pool(final ArrayList<T> pool, final T constant)
+    {
+	for (int i = 0, n = pool.size(); i < n; i++)
+	    if (pool.get(i) == constant)
+		return i;
+	pool.add(constant);
+	return pool.size() - 1;
+    }
+    
+}
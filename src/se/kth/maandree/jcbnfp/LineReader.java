@@ -33,6 +33,11 @@ class LineReader
      */
     private static final int BUF_SIZE = 128;
     
+    /**
+     * The size of the chunks read from the stream
+     */
+    private static final int CHUNK_SIZE = 4096;
+    
     
     
     //Has default constructor
@@ -59,6 +64,26 @@ class LineReader
      */
     private int ptr;
     
+    /**
+     * The last read chunk from the stream
+     */
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    
+    /**
+     * Decoder for the stream, its output buffer holds the read but not yet used characters
+     */
+    private final UTF8Decoder decoder = new UTF8Decoder(CHUNK_SIZE);
+    
+    /**
+     * The number of used characters in the decoder's output buffer
+     */
+    private int decoded = 0;
+    
+    /**
+     * Whether the end of the stream has been reached
+     */
+    private boolean eof = false;
+    
     
     
     /**
@@ -82,9 +107,9 @@ class LineReader
      */
     public int[] getNextLine(final InputStream is) throws IOException
     {
-	for (int d, c; (d = is.read()) != -1; )
+	for (int c; (c = getNextChar(is)) != -1; )
 	{
-	    if (((c = getNextChar(d, is)) == -1) || ((last == '\r') && (c == '\n')))
+	    if ((last == '\r') && (c == '\n'))
 	    {
 		last = c;
 		continue;
@@ -152,43 +177,32 @@ class LineReader
     /**
      * Gets next character from a stream
      *
-     * @param   d   An already read byte
      * @param   is  Stream to pull additional bytes from if needed
-     * @return      The ordinal value of the character, <code>-1</code> if not a character
+     * @return      The ordinal value of the character, <code>-1</code> at the end of the stream
      *
      * @throws  IOException  On I/O exception
      */
-    private static int getNextChar(final int d, final InputStream is) throws IOException
+    private int getNextChar(final InputStream is) throws IOException
     {
-	if (d == -1)
-	    return -1;
-	
-	int c;
-	if ((d & 128) == 0)
-	    c = d;
-	else
+	while (this.decoded == this.decoder.size())
 	{
-	    int n = 0;
-	    int b = d;
-	    while ((b & 128) != 0)
-	    {
-		n++;
-		b <<= 1;
-	    }
-	    if (n == 1)
-		return -1; //non-character
+	    if (this.eof)
+		return -1;
 	    
-	    c = (b & 0xFF) >>> n;
+	    this.decoder.clear();
+	    this.decoded = 0;
 	    
-	    for (int i = 1; i < n; i++)
+	    final int n = is.read(this.chunk, 0, CHUNK_SIZE);
+	    if (n == -1)
 	    {
-		int p = is.read();
-		if ((p == -1) || ((p >>> 6) != 2))
-		    return c;
-		c = (c << 6) | (p ^ 128);
+		this.decoder.finish();
+		this.eof = true;
 	    }
+	    else
+		this.decoder.decode(this.chunk, 0, n);
 	}
-	return c;
+	
+	return this.decoder.get(this.decoded++);
     }
     
 }
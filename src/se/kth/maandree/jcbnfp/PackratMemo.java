@@ -0,0 +1,312 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+
+
+/**
+ * Packrat memoisation table, remembers the result of a definition at an offset
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class PackratMemo
+{
+    /**
+     * Marker for a remembered failure
+     */
+    static final Object FAILED = new Object();
+    
+    /**
+     * The initial capacity of a definition's table, must be a power of two
+     */
+    private static final int INITIAL_CAPACITY = 64;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  unmemoisable  Whether the result of a definition, by id, depends on more than the offset
+     */
+    PackratMemo(final boolean[] unmemoisable)
+    {
+	this.unmemoisable = unmemoisable;
+	this.tables = new Table[unmemoisable.length];
+    }
+    
+    
+    
+    /**
+     * Whether the result of a definition, by id, depends on more than the offset
+     */
+    private final boolean[] unmemoisable;
+    
+    /**
+     * Offset tables for each definition, by id
+     */
+    private final Table[] tables;
+    
+    /**
+     * The number of lookups
+     */
+    long lookups = 0;
+    
+    /**
+     * The number of lookups that found a remembered result
+     */
+    long hits = 0;
+    
+    
+    
+    /**
+     * Gets the remembered result of a definition at an offset
+     * 
+     * @param   id   The id of the definition
+     * @param   off  The offset in the data
+     * @return       The parsed node, {@link #FAILED} if it did not match,
+     *               <code>null</code> if nothing is remembered
+     */
+    Object get(final int id, final int off)
+    {
+	if (this.unmemoisable[id])
+	    return null;
+	
+	this.lookups++;
+	final Table table = this.tables[id];
+	final Object rc = table == null ? null : table.get(off);
+	if (rc != null)
+	    this.hits++;
+	return rc;
+    }
+    
+    
+    /**
+     * Remembers the result of a definition at an offset
+     * 
+     * @param  id      The id of the definition
+     * @param  off     The offset in the data
+     * @param  result  The parsed node, {@link #FAILED} if it did not match
+     */
+    void put(final int id, final int off, final Object result)
+    {
+	if (this.unmemoisable[id])
+	    return;
+	
+	Table table = this.tables[id];
+	if (table == null)
+	    this.tables[id] = table = new Table();
+	table.put(off, result);
+    }
+    
+    
+    /**
+     * Finds all definitions whose result depends on captures made outside of them,
+     * that is, definitions that directly or indirectly uses backtracks
+     * 
+     * @param   grammar  The compiled grammar
+     * @return           Whether each definition, by id, may not be memoised
+     */
+    static boolean[] findUnmemoisable(final Grammar grammar)
+    {
+	final int n = grammar.size();
+	final boolean[] rc = new boolean[n];
+	final int[][] references = new int[n][];
+	
+	for (int id = 0; id < n; id++)
+	{
+	    final ArrayList<JCBNFDefinition> refs = new ArrayList<JCBNFDefinition>();
+	    rc[id] = collect(grammar.compiled[id], refs);
+	    references[id] = new int[refs.size()];
+	    for (int i = 0, m = refs.size(); i < m; i++)
+		references[id][i] = refs.get(i).id;
+	}
+	
+	for (boolean changed = true; changed;)
+	{
+	    changed = false;
+	    for (int id = 0; id < n; id++)
+		if (rc[id] == false)
+		    for (final int ref : references[id])
+			if (rc[ref])
+			{
+			    rc[id] = changed = true;
+			    break;
+			}
+	}
+	
+	return rc;
+    }
+    
+    
+    /**
+     * Collects all referenced definitions in a compiled grammar element and looks for backtracks
+     * 
+     * @param   element     The grammar element
+     * @param   references  List to which referenced definitions are added
+     * @return              Whether the element contains a backtrack
+     */
+    private static boolean collect(final GrammarElement element, final ArrayList<JCBNFDefinition> references)
+    {
+	if (element instanceof JCBNFBacktrack)
+	    return true;
+	if (element instanceof JCBNFDefinition)
+	    references.add((JCBNFDefinition)element);
+	else if (element instanceof JCBNFStore)
+	    return collect(((JCBNFStore)element).element, references);
+	else if (element instanceof JCBNFBoundedRepeation)
+	    return collect(((JCBNFBoundedRepeation)element).element, references);
+	else if (element instanceof JCBNFJuxtaposition)
+	{
+	    boolean rc = false;
+	    for (final GrammarElement e : ((JCBNFJuxtaposition)element).elements)
+		rc |= collect(e, references);
+	    return rc;
+	}
+	else if (element instanceof JCBNFAlternation)
+	{
+	    boolean rc = false;
+	    for (final GrammarElement e : ((JCBNFAlternation)element).elements)
+		rc |= collect(e, references);
+	    return rc;
+	}
+	
+	return false;
+    }
+    
+    
+    
+    /**
+     * Open addressing hash table from offsets to results
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    private static class Table
+    {
+	//Has default constructor
+	
+	
+	
+	/**
+	 * The offsets plus one, zero for empty slots
+	 */
+	private int[] keys = new int[INITIAL_CAPACITY];
+	
+	/**
+	 * The results
+	 */
+	private Object[] values = new Object[INITIAL_CAPACITY];
+	
+	/**
+	 * The number of used slots
+	 */
+	private int size = 0;
+	
+	
+	
+	/**
+	 * Gets the result for an offset
+	 * 
+	 * @param   off  The offset
+	 * @return       The result, <code>null</code> if none
+	 */
+	public Object get(final int off)
+	{
+	    final int key = off + 1;
+	    final int mask = this.keys.length - 1;
+	    for (int i = hash(key) & mask;; i = (i + 1) & mask)
+	    {
+		final int k = this.keys[i];
+		if (k == key)
+		    return this.values[i];
+		if (k == 0)
+		    return null;
+	    }
+	}
+	
+	
+	/**
+	 * Sets the result for an offset
+	 * 
+	 * @param  off     The offset
+	 * @param  result  The result
+	 */
+	public void put(final int off, final Object result)
+	{
+	    if ((this.size + 1) << 1 > this.keys.length)
+		grow();
+	    
+	    final int key = off + 1;
+	    final int mask = this.keys.length - 1;
+	    for (int i = hash(key) & mask;; i = (i + 1) & mask)
+	    {
+		final int k = this.keys[i];
+		if (k == 0)
+		{
+		    this.keys[i] = key;
+		    this.size++;
+		}
+		else if (k != key)
+		    continue;
+		this.values[i] = result;
+		return;
+	    }
+	}
+	
+	
+	/**
+	 * Doubles the capacity of the table
+	 */
+	private void grow()
+	{
+	    final int[] okeys = this.keys;
+	    final Object[] ovalues = this.values;
+	    final int n = okeys.length << 1;
+	    final int mask = n - 1;
+	    
+	    this.keys = new int[n];
+	    this.values = new Object[n];
+	    
+	    for (int j = 0, m = okeys.length; j < m; j++)
+		if (okeys[j] != 0)
+		    for (int i = hash(okeys[j]) & mask;; i = (i + 1) & mask)
+			if (this.keys[i] == 0)
+			{
+			    this.keys[i] = okeys[j];
+			    this.values[i] = ovalues[j];
+			    break;
+			}
+	}
+	
+	
+	/**
+	 * Scatters a key
+	 * 
+	 * @param   key  The key
+	 * @return       The scattered key
+	 */
+	private static int hash(final int key)
+	{
+	    final int h = key * 0x9E3779B9;
+	    return h ^ (h >>> 16);
+	}
+    }
+    
+}
@@ -0,0 +1,125 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * The work a parse has done, checked against its {@link ParseLimits}
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+final class ParseBudget
+{
+    /**
+     * Constructor, starts the clock
+     * 
+     * @param  limits  The limits of the parse
+     */
+    ParseBudget(final ParseLimits limits)
+    {
+	this.maxSteps = limits.maxSteps < 0 ? Long.MAX_VALUE : limits.maxSteps;
+	this.maxDepth = limits.maxDepth < 0 ? Integer.MAX_VALUE : limits.maxDepth;
+	this.timeout = limits.timeout < 0 ? -1 : (limits.timeout * 1000000L);
+	this.cancelled = limits.cancelled;
+	this.start = System.nanoTime();
+    }
+    
+    
+    
+    /**
+     * The maximum number of steps
+     */
+    private final long maxSteps;
+    
+    /**
+     * The maximum nesting depth of definitions
+     */
+    private final int maxDepth;
+    
+    /**
+     * The maximum time, in nanoseconds, <code>-1</code> for infinity
+     */
+    private final long timeout;
+    
+    /**
+     * Flag that cancels the parse when set, <code>null</code> if not used
+     */
+    private final AtomicBoolean cancelled;
+    
+    /**
+     * The time the parse started, in nanoseconds
+     */
+    private final long start;
+    
+    /**
+     * The number of steps made
+     */
+    private long steps = 0;
+    
+    /**
+     * The furthest offset in the data at which a definition was parsed
+     */
+    private int offset = 0;
+    
+    
+    
+    /**
+     * Makes a step, that is, starts the parsing of a node
+     * 
+     * @param  node  The node
+     * @param  off   The offset in the data
+     * 
+     * @throws  ParseLimitException  If a limit is exceeded or the parse is cancelled
+     */
+    void step(final ParseTree node, final int off)
+    {
+	if (this.offset < off)
+	    this.offset = off;
+	
+	if (++(this.steps) > this.maxSteps)
+	    throw abort(ParseLimitException.Reason.STEPS, node);
+	if (node.depth > this.maxDepth)
+	    throw abort(ParseLimitException.Reason.DEPTH, node);
+	
+	if ((this.steps & (ParseLimits.CHECK_INTERVAL - 1)) == 0)
+	{
+	    if (((this.cancelled != null) && this.cancelled.get()) || Thread.currentThread().isInterrupted())
+		throw abort(ParseLimitException.Reason.CANCELLED, node);
+	    if ((this.timeout >= 0) && (System.nanoTime() - this.start > this.timeout))
+		throw abort(ParseLimitException.Reason.TIME, node);
+	}
+    }
+    
+    
+    /**
+     * Creates the exception that aborts the parse
+     * 
+     * @param   reason  The reason the parse is aborted
+     * @param   node    The node that was being started
+     * @return          The exception
+     */
+    private ParseLimitException abort(final ParseLimitException.Reason reason, final ParseTree node)
+    {
+	final long elapsed = (System.nanoTime() - this.start) / 1000000L;
+	return new ParseLimitException(reason, this.steps, this.offset, node.depth, elapsed);
+    }
+    
+}
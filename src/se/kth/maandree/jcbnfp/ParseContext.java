@@ -0,0 +1,169 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+
+/**
+ * <p>The state of one parse</p>
+ * <p>
+ *   A {@link Parser} is immutable and can be used by many threads at once, so everything
+ *   that a parse changes, the parsed data, the packrat memoisation table, the named capture
+ *   stack and the work done, is kept in a context of its own, which every node in the parsed
+ *   tree refers to. A context can be created by the caller, to give the parse limits or to
+ *   read the memoisation statistics even if the grammar did not match, but it can only be
+ *   used for one parse.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public final class ParseContext
+{
+    /**
+     * Constructor, for a parse without limits
+     */
+    public ParseContext()
+    {
+	this(null);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  limits  The limits of the parse, <code>null</code> for none
+     */
+    public ParseContext(final ParseLimits limits)
+    {
+	this.limits = limits;
+    }
+    
+    
+    
+    /**
+     * The limits of the parse, <code>null</code> for none
+     */
+    public final ParseLimits limits;
+    
+    /**
+     * The parsed data, <code>null</code> if not parsed by a {@link Parser}
+     */
+    CodePointText text = null;
+    
+    /**
+     * Packrat memoisation table, <code>null</code> if not used
+     */
+    PackratMemo memo = null;
+    
+    /**
+     * Parse tracer, <code>null</code> if not used
+     */
+    ParseTracer tracer = null;
+    
+    /**
+     * The work the parse has done, <code>null</code> if the parse has no limits
+     */
+    ParseBudget budget = null;
+    
+    /**
+     * Named capture stack, <code>null</code> until the parse begins
+     */
+    CaptureStack captureStack = null;
+    
+    
+    
+    /**
+     * Creates a context for a tree that is parsed directly rather than by a {@link Parser}
+     * 
+     * @param   grammar  The compiled grammar
+     * @return           The context
+     */
+    static ParseContext detached(final Grammar grammar)
+    {
+	final ParseContext context = new ParseContext();
+	context.begin(grammar, null, null, null);
+	return context;
+    }
+    
+    
+    /**
+     * Begins the parse, and starts the clock if it has limits
+     * 
+     * @param  grammar  The compiled grammar
+     * @param  text     The data to parse, <code>null</code> if not parsed by a {@link Parser}
+     * @param  memo     Packrat memoisation table, <code>null</code> if not used
+     * @param  tracer   Parse tracer, <code>null</code> if not used
+     * 
+     * @throws  IllegalStateException  If the context has already been used
+     */
+    void begin(final Grammar grammar, final CodePointText text, final PackratMemo memo, final ParseTracer tracer)
+    {
+	if (this.captureStack != null)
+	    throw new IllegalStateException("A parse context can only be used for one parse");
+	
+	this.captureStack = new CaptureStack(grammar.slotNames.length);
+	this.text = text;
+	this.memo = memo;
+	this.tracer = tracer;
+	this.budget = this.limits == null ? null : new ParseBudget(this.limits);
+    }
+    
+    
+    /**
+     * Gets the parsed data
+     * 
+     * @return  The parsed data, <code>null</code> if not parsed by a {@link Parser}
+     */
+    public CodePointText getText()
+    {
+	return this.text;
+    }
+    
+    
+    /**
+     * Gets the number of packrat memoisation table lookups
+     * 
+     * @return  The number of lookups, zero if packrat parsing is not used
+     */
+    public long getMemoLookups()
+    {
+	return this.memo == null ? 0 : this.memo.lookups;
+    }
+    
+    /**
+     * Gets the number of packrat memoisation table lookups that found a
+     * remembered result and thus did not need to reparse the definition
+     * 
+     * @return  The number of hits, zero if packrat parsing is not used
+     */
+    public long getMemoHits()
+    {
+	return this.memo == null ? 0 : this.memo.hits;
+    }
+    
+    /**
+     * Gets the hit rate of the packrat memoisation table
+     * 
+     * @return  The ratio of lookups that were hits, zero if there were no lookups
+     */
+    public double getMemoHitRate()
+    {
+	final long lookups = getMemoLookups();
+	return lookups == 0 ? 0. : ((double)getMemoHits() / lookups);
+    }
+    
+}
@@ -0,0 +1,127 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+
+/**
+ * This exception is thrown if a parse exceeds its {@link ParseLimits}, or is cancelled
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+@SuppressWarnings("serial")
+public class ParseLimitException extends RuntimeException
+{
+    /**
+     * Constructor
+     * 
+     * @param  reason   The reason the parse was aborted
+     * @param  steps    The number of steps made
+     * @param  offset   The furthest offset in the data at which a definition was parsed
+     * @param  depth    The nesting depth of definitions when the parse was aborted
+     * @param  elapsed  The time the parse took, in milliseconds
+     */
+    public ParseLimitException(final Reason reason, final long steps, final int offset, final int depth, final long elapsed)
+    {
+	super("Parse aborted, " + reason.description + ", after " + steps + " steps and " + elapsed + " ms, at depth " + depth +
+	      ", reached offset " + offset);
+	this.reason = reason;
+	this.steps = steps;
+	this.offset = offset;
+	this.depth = depth;
+	this.elapsed = elapsed;
+    }
+    
+    
+    
+    /**
+     * The reason the parse was aborted
+     */
+    public final Reason reason;
+    
+    /**
+     * The number of steps made
+     */
+    public final long steps;
+    
+    /**
+     * The furthest offset in the data at which a definition was parsed
+     */
+    public final int offset;
+    
+    /**
+     * The nesting depth of definitions when the parse was aborted
+     */
+    public final int depth;
+    
+    /**
+     * The time the parse took, in milliseconds
+     */
+    public final long elapsed;
+    
+    
+    
+    /**
+     * Reasons for aborting a parse
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    public static enum Reason
+    {
+	/**
+	 * The maximum number of steps was exceeded
+	 */
+	STEPS("too many steps"),
+	
+	/**
+	 * The maximum time was exceeded
+	 */
+	TIME("out of time"),
+	
+	/**
+	 * The maximum nesting depth was exceeded
+	 */
+	DEPTH("nested too deep"),
+	
+	/**
+	 * The parse was cancelled, or its thread was interrupted
+	 */
+	CANCELLED("cancelled");
+	
+	
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param  description  Description of the reason
+	 */
+	private Reason(final String description)
+	{
+	    this.description = description;
+	}
+	
+	
+	
+	/**
+	 * Description of the reason
+	 */
+	public final String description;
+	
+    }
+    
+}
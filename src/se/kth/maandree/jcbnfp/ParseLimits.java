@@ -0,0 +1,121 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * <p>Limits on the work a parse may do</p>
+ * <p>
+ *   Backtracking over ordered choices can take exponential time on adversarial data,
+ *   so a parse can be given a maximum number of steps, where a step is the parsing of
+ *   a definition at an offset, a maximum time, a maximum nesting depth of definitions,
+ *   and a flag with which it can be cancelled from another thread. A parse that exceeds
+ *   a limit, or that is cancelled or whose thread is interrupted, is aborted with a
+ *   {@link ParseLimitException}. The steps and the depth are checked at every step,
+ *   the time and the cancellation only every {@link #CHECK_INTERVAL} steps.
+ * </p>
+ * <p>
+ *   The limits are immutable and can be shared between parses; the time is measured
+ *   from the start of each parse.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public final class ParseLimits
+{
+    /**
+     * The number of steps between checks of the time and the cancellation, a power of two
+     */
+    public static final int CHECK_INTERVAL = 256;
+    
+    /**
+     * No limits
+     */
+    public static final ParseLimits NONE = new ParseLimits(-1, -1, -1, null);
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  maxSteps  The maximum number of steps, <code>-1</code> for infinity
+     * @param  timeout   The maximum time, in milliseconds, <code>-1</code> for infinity
+     * @param  maxDepth  The maximum nesting depth of definitions, the main definition
+     *                   has depth zero, <code>-1</code> for infinity
+     */
+    public ParseLimits(final long maxSteps, final long timeout, final int maxDepth)
+    {
+	this(maxSteps, timeout, maxDepth, null);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  maxSteps   The maximum number of steps, <code>-1</code> for infinity
+     * @param  timeout    The maximum time, in milliseconds, <code>-1</code> for infinity
+     * @param  maxDepth   The maximum nesting depth of definitions, the main definition
+     *                    has depth zero, <code>-1</code> for infinity
+     * @param  cancelled  Flag that cancels the parse when set, <code>null</code> if not used
+     */
+    public ParseLimits(final long maxSteps, final long timeout, final int maxDepth, final AtomicBoolean cancelled)
+    {
+	this.maxSteps = maxSteps;
+	this.timeout = timeout;
+	this.maxDepth = maxDepth;
+	this.cancelled = cancelled;
+    }
+    
+    
+    
+    /**
+     * The maximum number of steps, <code>-1</code> for infinity
+     */
+    public final long maxSteps;
+    
+    /**
+     * The maximum time, in milliseconds, <code>-1</code> for infinity
+     */
+    public final long timeout;
+    
+    /**
+     * The maximum nesting depth of definitions, <code>-1</code> for infinity
+     */
+    public final int maxDepth;
+    
+    /**
+     * Flag that cancels the parse when set, <code>null</code> if not used
+     */
+    public final AtomicBoolean cancelled;
+    
+    
+    
+    /**
+     * Creates limits that are cancelled by a flag, but otherwise the same as these
+     * 
+     * @param   cancelled  Flag that cancels the parse when set, <code>null</code> if not used
+     * @return             The new limits
+     */
+    public ParseLimits cancelledBy(final AtomicBoolean cancelled)
+    {
+	return new ParseLimits(this.maxSteps, this.timeout, this.maxDepth, cancelled);
+    }
+    
+}
@@ -0,0 +1,613 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+
+/**
+ * <p>Front end that parses documents as they are requested, with one shared parser</p>
+ * <p>
+ *   Every request is parsed on a pool of threads that is sized for the processors rather
+ *   than for the requests, and the result is returned as a {@link Future}. Documents read
+ *   from an {@link AsynchronousByteChannel}, such as a socket, are read and decoded with
+ *   completion handlers, so no parsing thread waits for the data; only when the whole
+ *   document has been read is it parsed. Documents read from an {@link InputStream} are
+ *   read and decoded on the executor given to the service, which may have a thread for each
+ *   task, or otherwise on a small pool of threads for I/O, and are likewise only handed over
+ *   to the parsing threads when they have been read, so a slow stream does not hold up a
+ *   parsing thread. The number of requests in flight, from when they are submitted until
+ *   they have been parsed, is bounded: when the bound is reached, submitting blocks until
+ *   a request has finished, which limits the memory held by the service however many
+ *   requests arrive.
+ * </p>
+ * <p>
+ *   Cancelling a future with interruption aborts the parse, as a parse always checks
+ *   whether its thread is interrupted, with {@link ParseLimitException}. A cancelled
+ *   request is in flight until its reading or parsing has actually stopped.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ParseService
+{
+    /**
+     * The size of the buffers that documents are read into from channels
+     */
+    private static final int BUFFER_SIZE = 8192;
+    
+    /**
+     * The number of threads that streams are read on, when the service created the executor
+     */
+    private static final int IO_THREADS = 8;
+    
+    
+    
+    /**
+     * Constructor, with a pool of as many threads as there are processors
+     * 
+     * @param  parser       The parser to use for every request
+     * @param  maxInFlight  The maximum number of requests in flight
+     */
+    public ParseService(final Parser parser, final int maxInFlight)
+    {
+	this(parser, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()), maxInFlight, true);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  parser       The parser to use for every request
+     * @param  executor     The executor to parse on, it is not shut down by the service
+     * @param  maxInFlight  The maximum number of requests in flight
+     */
+    public ParseService(final Parser parser, final ExecutorService executor, final int maxInFlight)
+    {
+	this(parser, executor, maxInFlight, false);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  parser       The parser to use for every request
+     * @param  executor     The executor to parse on
+     * @param  maxInFlight  The maximum number of requests in flight
+     * @param  owned        Whether the executor is shut down with the service
+     */
+    private ParseService(final Parser parser, final ExecutorService executor, final int maxInFlight, final boolean owned)
+    {
+	if (maxInFlight < 1)
+	    throw new IllegalArgumentException("At least one request must be allowed in flight");
+	this.parser = parser;
+	this.executor = executor;
+	this.owned = owned;
+	this.maxInFlight = maxInFlight;
+	this.permits = new Semaphore(maxInFlight);
+    }
+    
+    
+    
+    /**
+     * The parser to use for every request
+     */
+    private final Parser parser;
+    
+    /**
+     * The executor to parse on
+     */
+    private final ExecutorService executor;
+    
+    /**
+     * The executor that streams are read on if the service created the executor to parse on,
+     * <code>null</code> until a stream is submitted; it is shut down with the service
+     */
+    private ThreadPoolExecutor ioExecutor = null;
+    
+    /**
+     * Whether the executor is shut down with the service
+     */
+    private final boolean owned;
+    
+    /**
+     * The maximum number of requests in flight
+     */
+    private final int maxInFlight;
+    
+    /**
+     * A permit for each request that may be submitted
+     */
+    private final Semaphore permits;
+    
+    /**
+     * Whether the service has been shut down
+     */
+    private volatile boolean shutDown = false;
+    
+    
+    
+    /**
+     * Requests the parsing of a document that is read from a channel without blocking
+     * 
+     * @param   channel  The channel, it is read until its end but it is not closed
+     * @param   limits   The limits of the parse, <code>null</code> for none
+     * @return           The tree with the result, <code>null</code> if the grammar does not match
+     * 
+     * @throws  InterruptedException  If interrupted while waiting for a request to finish
+     */
+    public Future<ParseTree> submit(final AsynchronousByteChannel channel, final ParseLimits limits) throws InterruptedException
+    {
+	this.permits.acquire();
+	final ChannelReader reader = new ChannelReader(channel, limits);
+	if (accept(reader.request))
+	    reader.read();
+	return reader.request;
+    }
+    
+    
+    /**
+     * Requests the parsing of a document that is read from a stream, the stream is read on the
+     * executor given to the service, or if none was given, on a small pool of threads for I/O
+     * 
+     * @param   is      The data stream to parse
+     * @param   limits  The limits of the parse, <code>null</code> for none
+     * @return          The tree with the result, <code>null</code> if the grammar does not match
+     * 
+     * @throws  InterruptedException  If interrupted while waiting for a request to finish
+     */
+    public Future<ParseTree> submit(final InputStream is, final ParseLimits limits) throws InterruptedException
+    {
+	this.permits.acquire();
+	final StreamReader reader = new StreamReader(is, limits);
+	if (accept(reader.request))
+	    try
+	    {
+		ioExecutor().execute(reader);
+	    }
+	    catch (final RejectedExecutionException err)
+	    {
+		reader.request.fail(err);
+	    }
+	return reader.request;
+    }
+    
+    
+    /**
+     * Requests the parsing of a file
+     * 
+     * @param   file    The file to parse
+     * @param   limits  The limits of the parse, <code>null</code> for none
+     * @return          The tree with the result, <code>null</code> if the grammar does not match
+     * 
+     * @throws  InterruptedException  If interrupted while waiting for a request to finish
+     */
+    public Future<ParseTree> submit(final Path file, final ParseLimits limits) throws InterruptedException
+    {
+	return submit(new Callable<ParseTree>()
+	    {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public ParseTree call() throws IOException
+		{
+		    return ParseService.this.parser.parse(file, context(limits));
+		}
+	    });
+    }
+    
+    
+    /**
+     * Submits a request that is parsed directly
+     * 
+     * @param   parse  The parsing of the request
+     * @return         The tree with the result, <code>null</code> if the grammar does not match
+     * 
+     * @throws  InterruptedException  If interrupted while waiting for a request to finish
+     */
+    private Future<ParseTree> submit(final Callable<ParseTree> parse) throws InterruptedException
+    {
+	this.permits.acquire();
+	final Request request = new Request(parse);
+	if (accept(request))
+	    dispatch(request);
+	return request;
+    }
+    
+    
+    /**
+     * Gets the executor that streams are read on, the executor given to the service,
+     * so that a reading request does not hold a thread of its own if the executor has
+     * a thread for each task, or otherwise a bounded pool that is created when needed
+     * 
+     * @return  The executor that streams are read on
+     */
+    private synchronized Executor ioExecutor()
+    {
+	if (this.owned == false)
+	    return this.executor;
+	if (this.ioExecutor == null)
+	{
+	    this.ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	    this.ioExecutor.allowCoreThreadTimeOut(true);
+	}
+	return this.ioExecutor;
+    }
+    
+    
+    /**
+     * Fails a request, that has been given a permit, if the service has been shut down
+     * 
+     * @param   request  The request
+     * @return           Whether the request was accepted
+     */
+    private boolean accept(final Request request)
+    {
+	if (this.shutDown == false)
+	    return true;
+	request.fail(new RejectedExecutionException("The parse service has been shut down"));
+	return false;
+    }
+    
+    
+    /**
+     * Hands a request over to the parsing threads
+     * 
+     * @param  request  The request
+     */
+    private void dispatch(final Request request)
+    {
+	try
+	{
+	    this.executor.execute(request);
+	}
+	catch (final RejectedExecutionException err)
+	{
+	    request.fail(err);
+	}
+    }
+    
+    
+    /**
+     * Creates the context of a parse, a parse that is not given limits is still given
+     * {@link ParseLimits#NONE} so that it stops if its future is cancelled
+     * 
+     * @param   limits  The limits of the parse, <code>null</code> for none
+     * @return          The context of the parse
+     */
+    private static ParseContext context(final ParseLimits limits)
+    {
+	return new ParseContext(limits == null ? ParseLimits.NONE : limits);
+    }
+    
+    
+    /**
+     * Gets the number of requests in flight
+     * 
+     * @return  The number of requests that have been submitted but not finished
+     */
+    public int getInFlight()
+    {
+	return this.maxInFlight - this.permits.availablePermits();
+    }
+    
+    
+    /**
+     * Stops accepting requests, later requests fail with {@link RejectedExecutionException};
+     * the requests in flight are finished, and when they have, the executor is shut down
+     * if it was created by the service
+     */
+    public void shutdown()
+    {
+	this.shutDown = true;
+	terminateIfIdle();
+    }
+    
+    
+    /**
+     * Shuts down the executors if the service has been shut down and no request is in flight
+     */
+    private synchronized void terminateIfIdle()
+    {
+	if (this.shutDown && (this.permits.availablePermits() == this.maxInFlight))
+	{
+	    if (this.owned)
+		this.executor.shutdown();
+	    if (this.ioExecutor != null)
+		this.ioExecutor.shutdown();
+	}
+    }
+    
+    
+    
+    /**
+     * A request, it releases its permit when its work has finished, which for a cancelled
+     * request is not when it is cancelled, but when its reading or parsing stops
+     */
+    private final class Request extends FutureTask<ParseTree>
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  parse  The parsing of the request
+	 */
+	Request(final Callable<ParseTree> parse)
+	{
+	    super(parse);
+	}
+	
+	
+	
+	/**
+	 * Whether the permit has been released
+	 */
+	private final AtomicBoolean released = new AtomicBoolean(false);
+	
+	
+	
+	/**
+	 * Finishes the request with an error, and releases its permit
+	 * 
+	 * @param  error  The error
+	 */
+	void fail(final Throwable error)
+	{
+	    setException(error);
+	    release();
+	}
+	
+	
+	/**
+	 * Releases the permit of the request, when no more work is done for it
+	 */
+	void release()
+	{
+	    if (this.released.compareAndSet(false, true))
+	    {
+		ParseService.this.permits.release();
+		terminateIfIdle();
+	    }
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void run()
+	{
+	    try
+	    {
+		super.run();
+	    }
+	    finally
+	    {
+		release();
+	    }
+	}
+	
+    }
+    
+    
+    /**
+     * Reads and decodes a document from a stream, and parses it once it has been read
+     */
+    private final class StreamReader implements Runnable, Callable<ParseTree>
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  is      The stream
+	 * @param  limits  The limits of the parse, <code>null</code> for none
+	 */
+	StreamReader(final InputStream is, final ParseLimits limits)
+	{
+	    this.is = is;
+	    this.limits = limits;
+	    this.request = new Request(this);
+	}
+	
+	
+	
+	/**
+	 * The stream
+	 */
+	private final InputStream is;
+	
+	/**
+	 * The limits of the parse, <code>null</code> for none
+	 */
+	private final ParseLimits limits;
+	
+	/**
+	 * The request, it is dispatched when the document has been read
+	 */
+	final Request request;
+	
+	/**
+	 * The decoded document
+	 */
+	private CodePointText text = null;
+	
+	
+	
+	/**
+	 * Reads the document, on the thread for I/O
+	 */
+	@Override
+	public void run()
+	{
+	    if (this.request.isDone())
+	    {
+		this.request.release(); // cancelled
+		return;
+	    }
+	    
+	    try
+	    {
+		this.text = UTF8Decoder.decode(this.is);
+	    }
+	    catch (final Throwable err)
+	    {
+		this.request.fail(err);
+		return;
+	    }
+	    
+	    if (this.request.isDone())
+		this.request.release(); // cancelled
+	    else
+		dispatch(this.request);
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ParseTree call()
+	{
+	    return ParseService.this.parser.parse(this.text, context(this.limits));
+	}
+	
+    }
+    
+    
+    /**
+     * Reads and decodes a document from a channel, and parses it once it has been read
+     */
+    private final class ChannelReader implements CompletionHandler<Integer, Void>, Callable<ParseTree>
+    {
+	/**
+	 * Constructor
+	 * 
+	 * @param  channel  The channel
+	 * @param  limits   The limits of the parse, <code>null</code> for none
+	 */
+	ChannelReader(final AsynchronousByteChannel channel, final ParseLimits limits)
+	{
+	    this.channel = channel;
+	    this.limits = limits;
+	    this.request = new Request(this);
+	}
+	
+	
+	
+	/**
+	 * The channel
+	 */
+	private final AsynchronousByteChannel channel;
+	
+	/**
+	 * The limits of the parse, <code>null</code> for none
+	 */
+	private final ParseLimits limits;
+	
+	/**
+	 * The request, it is dispatched when the document has been read
+	 */
+	final Request request;
+	
+	/**
+	 * The buffer that is read into
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	/**
+	 * The decoded document
+	 */
+	private final UTF8Decoder decoder = new UTF8Decoder(BUFFER_SIZE);
+	
+	
+	
+	/**
+	 * Reads the next chunk of the document
+	 */
+	void read()
+	{
+	    try
+	    {
+		this.channel.read(this.buffer, null, this);
+	    }
+	    catch (final Throwable err)
+	    {
+		failed(err, null);
+	    }
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void completed(final Integer read, final Void attachment)
+	{
+	    if (this.request.isDone())
+	    {
+		this.request.release(); // cancelled
+		return;
+	    }
+	    
+	    try
+	    {
+		if (read.intValue() < 0)
+		{
+		    this.decoder.finish();
+		    dispatch(this.request);
+		    return;
+		}
+		
+		this.buffer.flip();
+		this.decoder.decode(this.buffer);
+		this.buffer.clear();
+	    }
+	    catch (final Throwable err)
+	    {
+		failed(err, null); // the channel would swallow it, and the request would never finish
+		return;
+	    }
+	    read();
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void failed(final Throwable error, final Void attachment)
+	{
+	    this.request.fail(error);
+	}
+	
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ParseTree call()
+	{
+	    return ParseService.this.parser.parse(this.decoder.toText(), context(this.limits));
+	}
+	
+    }
+    
+}
@@ -0,0 +1,58 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+
+/**
+ * Interface for tracing the parsing, parsing is not traced unless a tracer is given to the parser
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public interface ParseTracer
+{
+    /**
+     * Invoked when a grammar element is about to be tried
+     * 
+     * @param  node     The node that is being parsed
+     * @param  off      The offset in the data
+     * @param  element  The compiled grammar element, may be <code>null</code>
+     */
+    public abstract void parsing(final ParseTree node, final int off, final GrammarElement element);
+    
+    
+    
+    /**
+     * Tracer that prints every tried grammar element, the element is printed
+     * on one line to stderr and then as a tree to stdout
+     */
+    public static final ParseTracer VERBOSE = new ParseTracer()
+	    {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void parsing(final ParseTree node, final int off, final GrammarElement element)
+		{
+		    System.err.println("parsing: " + element);
+		    if (element != null)
+			element.printGrammar("::>  ");
+		}
+	    };
+    
+}
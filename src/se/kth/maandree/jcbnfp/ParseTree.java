@@ -46,14 +46,30 @@ public class ParseTree
      * 
      * @param  parent       The parent node, <code>null</code> if none
      * @param  definition   The current definition, includes name, grammar &amp;c
-     * @param  definitions  Definition map
+     * @param  grammar      The compiled grammar
      */
-    public ParseTree(final ParseTree parent, final Definition definition, final HashMap<String, Definition> definitions)
+    public ParseTree(final ParseTree parent, final Definition definition, final Grammar grammar)
     {
-	assert definition != null;
+	this(parent, grammar.getId(definition), grammar, parent == null ? ParseContext.detached(grammar) : parent.context);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  parent   The parent node, <code>null</code> if none
+     * @param  id       The id of the current definition
+     * @param  grammar  The compiled grammar
+     * @param  context  The state of the parse, which has begun
+     */
+    ParseTree(final ParseTree parent, final int id, final Grammar grammar, final ParseContext context)
+    {
+	assert id >= 0;
 	this.parent = parent;
-	this.definition = definition;
-	this.definitions = definitions;
+	this.id = id;
+	this.definition = grammar.getDefinition(id);
+	this.grammar = grammar;
+	this.context = context;
+	this.depth = parent == null ? 0 : (parent.depth + 1);
     }
     
     
@@ -79,9 +95,24 @@ public class ParseTree
     public HashMap<String, ArrayDeque<int[]>> storage = null;
     
     /**
-     * Definition map
+     * The state of the parse, shared by the whole tree
      */
-    protected final HashMap<String, Definition> definitions;
+    public final ParseContext context;
+    
+    /**
+     * The compiled grammar
+     */
+    protected final Grammar grammar;
+    
+    /**
+     * The id of the current definition
+     */
+    final int id;
+    
+    /**
+     * The nesting depth of the node, the root has depth zero
+     */
+    final int depth;
     
     /**
      * The beginning (inclusive) of the data that this node spans
@@ -105,6 +136,19 @@ public class ParseTree
     
     
     
+    /**
+     * Parses the tree and stores all data
+     * 
+     * @param   data  The data
+     * @param   off   The offset in the data
+     * @return        The amount of read data
+     */
+    public int parse(final int[] data, final int off)
+    {
+	return parse(CodePointText.wrap(data), off);
+    }
+    
+    
     /**
      * Parses the tree and stores all data
      * 
@@ -112,19 +156,20 @@ public class ParseTree
      * @param   off   The offset in the data
      * @return        The amount of read data
      * 
-     * @throws  UndefiniedDefinitionException  If the JCBNF file is refering to an undefinied definition
+     * @throws  ParseLimitException  If the parse exceeds its limits
      */
-    public int parse(final int[] data, final int off) throws UndefiniedDefinitionException
+    public int parse(final CodePointText data, final int off)
     {
-	@SuppressWarnings({"all", "unchecked", "rawtypes"}) // ecj finds [unchecked], openjdk finds [rawtypes] as well, [all] removed warning about "rawtypes" in ecj
-	final HashMap<String, ArrayDeque<int[]>>[] storages = (HashMap<String, ArrayDeque<int[]>>[])(new HashMap[32]);
+	final ParseContext context = this.context;
+	if (context.budget != null)
+	    context.budget.step(this, off);
 	
-	@SuppressWarnings({"all", "unchecked", "rawtypes"})
-	final HashMap<String, int[]>[] reads = (HashMap<String, int[]>[])(new HashMap[32]);
+	final CaptureStack captureStack = context.captureStack;
+	final int mark = captureStack.size();
 	
-	final ParseReturn r = parse(data, off, this.definition.definition, storages, 0, reads, 0, (byte)0);
-	this.storage = r == null ? null : r.storage;
-	int rc = r == null ? -1 : r.read;
+	final int rc = parse(data, off, this.grammar.compiled[this.id], (byte)0);
+	this.storage = rc < 0 ? null : captureStack.storage(mark, this.grammar.slotNames);
+	captureStack.truncate(mark);
 	
 	this.intervalStart = off;
 	this.intervalEnd = rc < 0 ? off : rc;
@@ -137,70 +182,58 @@ public class ParseTree
     
     
     /**
-     * Find a named capture
+     * Makes this node a copy of a memoised node, the subtree is cloned, as the memoised
+     * node may be in a discarded branch or be adopted more than once in the tree
      * 
-     * @param   name            The name of the capture
-     * @param   storages        Named capture storage stack
-     * @param   storagePtr      Named capture storage stack pointer
-     * @param   reads           Named capture read stack
-     * @param   readPtr         Named capture read stack pointer
-     * @param   elementalState  Grammar element state
-     * @return                  The capture's span, <code>null</code> if not found, otherwise, {start, end}
+     * @param  node  The memoised node
      */
-    private int[] backtrack(final String name, final HashMap<String, ArrayDeque<int[]>>[] storages, final int storagePtr,
-			    final HashMap<String, int[]>[] reads, final int readPtr, final byte elementalState)
+    void copy(final ParseTree node)
     {
-	ParseTree tree = this;
-	for (;;)
+	final ArrayList<ParseTree> children = node.children;
+	this.children = new ArrayList<ParseTree>(children.size());
+	for (final ParseTree child : children)
 	{
-	    if (tree == null)
-		return null;
-	    
-	    final HashMap<String, ArrayDeque<int[]>> map = this.storage;
-	    if (map == null)
-	    {   tree = tree.parent;
-		continue;
-	    }
-	    
-	    final ArrayDeque<int[]> array = map.get(name);
-	    if (array == null)
-	    {   tree = tree.parent;
-		continue;
-	    }
-	    
-	    return array.pollFirst();
+	    final ParseTree clone = new ParseTree(this, child.id, child.grammar, child.context);
+	    clone.copy(child);
+	    this.children.add(clone);
 	}
+	if (node.storage != null)
+	{
+	    this.storage = new HashMap<String, ArrayDeque<int[]>>();
+	    for (final Map.Entry<String, ArrayDeque<int[]>> entry : node.storage.entrySet())
+		this.storage.put(entry.getKey(), new ArrayDeque<int[]>(entry.getValue()));
+	}
+	this.intervalStart = node.intervalStart;
+	this.intervalEnd = node.intervalEnd;
+	this.paniced = node.paniced;
+	this.compile = node.compile;
     }
     
     
     /**
-     * Parses a subtree
+     * Parses a subtree, and undoes its additions to the node's children and the named capture
+     * stack if it does not match; the undoing only costs as much as the work that is undone,
+     * as the children and the named capture stack are only appended to
      * 
      * @param   data            The data
      * @param   off             The offset in the data
      * @param   def             The grammar element to parse
-     * @param   storages        Named capture storage stack
-     * @param   storagePtr      Named capture storage stack pointer
-     * @param   reads           Named capture read stack
-     * @param   readPtr         Named capture read stack pointer
      * @param   elementalState  Grammar element state
-     * @return                  Parsing subtree data
-     * 
-     * @throws  UndefiniedDefinitionException  If the JCBNF file is refering to an undefinied definition
+     * @return                  The end of the subtree, <code>-1</code> if it did not match
      */
-    @SuppressWarnings("unchecked")
-    private ParseReturn parse(final int[] data, final int off, final GrammarElement def, final HashMap<String, ArrayDeque<int[]>>[] storages,
-			      final int storagePtr, final HashMap<String, int[]>[] reads, final int readPtr, final byte elementalState) throws UndefiniedDefinitionException
+    private int parse(final CodePointText data, final int off, final GrammarElement def, final byte elementalState)
     {
-	final ArrayList<ParseTree> _children = this.children == null ? null : (ArrayList<ParseTree>)(this.children.clone());
-	final HashMap<String, ArrayDeque<int[]>> _storage = this.storage == null ? null : (HashMap<String, ArrayDeque<int[]>>)(this.storage.clone());
+	final ArrayList<ParseTree> children = this.children;
+	final int mark = children.size();
+	final int captureMark = this.context.captureStack.size();
 	
-	final ParseReturn rc = _parse(data, off, def, storages, storagePtr, reads, readPtr, elementalState);
+	final int rc = _parse(data, off, def, elementalState);
 	
-	if (rc == null)
+	if (rc < 0)
 	{
-	    this.children = _children;
-	    this.storage = _storage;
+	    for (int i = children.size() - 1; i >= mark; i--)
+		children.remove(i);
+	    this.context.captureStack.truncate(captureMark);
 	}
 	
 	return rc;
@@ -212,85 +245,49 @@ public class ParseTree
      * @param   data            The data
      * @param   off             The offset in the data
      * @param   def             The grammar element to parse
-     * @param   storages        Named capture storage stack
-     * @param   storagePtr      Named capture storage stack pointer
-     * @param   reads           Named capture read stack
-     * @param   readPtr         Named capture read stack pointer
      * @param   elementalState  Grammar element state
-     * @return                  Parsing subtree data
-     * 
-     * @throws  UndefiniedDefinitionException  If the JCBNF file is refering to an undefinied definition
+     * @return                  The end of the subtree, <code>-1</code> if it did not match
      */
-    private ParseReturn _parse(final int[] data, final int off, final GrammarElement def, final HashMap<String, ArrayDeque<int[]>>[] storages,
-			       final int storagePtr, final HashMap<String, int[]>[] reads, final int readPtr, final byte elementalState) throws UndefiniedDefinitionException
+    private int _parse(final CodePointText data, final int off, final GrammarElement def, final byte elementalState)
     {
-	System.err.println("parsing: " + def);
-	ParseReturn rc = new ParseReturn();
-	final GrammarElement grammar = Parser.assemble(def);
-	grammar.printGrammar("::>  ");
+	if (this.context.tracer != null)
+	    this.context.tracer.parsing(this, off, def);
+	
+	final GrammarElement grammar = def;
 	final int atom = Parser.passes(data, off, grammar);
 	
-	if (atom == -1) rc.read = -1;
-	if (atom >= 0)  rc.read = off + atom;
-	if (atom >= -1)
-	    return rc;
+	if (atom >= 0)
+	    return off + atom;
+	if (atom == -1)
+	    return -1;
 	
 	if (grammar instanceof JCBNFBacktrack)
 	{
-	    final String name = ((JCBNFBacktrack)grammar).name;
-	    final int[] start_end = backtrack(name, storages, storagePtr, reads, readPtr, elementalState);
-	    if (start_end == null)
-		return null;
-	    
-	    final int start = start_end[0];
-	    final int end = start_end[1];
-	    
-	    if (((JCBNFBacktrack)grammar).replacee != null)
-		rc.read = Parser.passes(data, off, start, end);
-	    else
-	    {
-		final int[] replacee = Util.stringToIntArray(((JCBNFBacktrack)grammar).replacee);
-		final int[] replacer = Util.stringToIntArray(((JCBNFBacktrack)grammar).replacer);
-		
-		rc.read = Parser.passes(data, off, start, end, replacee, replacer);
-	    }
-	    
-	    return rc.read < 0 ? null : rc;
+	    final int read = Parser.passes(data, off, (JCBNFBacktrack)grammar, this.context.captureStack);
+	    return read < 0 ? -1 : (off + read);
 	}
 	if (grammar instanceof JCBNFStore)
 	{
-	    final String name = ((JCBNFStore)grammar).name;
+	    final int slot = ((JCBNFStore)grammar).slot;
 	    final GrammarElement g = ((JCBNFStore)grammar).element;
-	    final ParseReturn r = parse(data, off, g, storages, storagePtr, reads, readPtr, elementalState);
-	    if ((r == null) || (r.read < 0))
-		return null;
-	    
-	    if (r.storage == null)
-		r.storage = new HashMap<String, ArrayDeque<int[]>>();
-	    
-	    ArrayDeque<int[]> list = r.storage.get(name);
-	    if (list == null)
-		r.storage.put(name, list = new ArrayDeque<int[]>());
+	    final int capture = this.context.captureStack.push(slot, off); // I have arbitrarly choosen to add items in parse (definition) order,
+	    final int r = parse(data, off, g, elementalState);     // rather than parsed (complete) order; however storing effected by
+	    if (r < 0)                                             // this choice [for example <a=x <a=y> z>] is strongly disencouraged.
+		return -1;
 	    
-	    list.offerFirst(new int[] { off, off + r.read }); // I have arbitrarly choosen to add items in parse (definition) order,
-	                                                      // rather than parsed (complete) order; however storing effected by
-	    return r;                                         // this choice [for example <a=x <a=y> z>] is strongly disencouraged.
+	    this.context.captureStack.complete(capture, r);
+	    return r;
 	}
 	if (grammar instanceof JCBNFBoundedRepeation) //TODO %reads
 	{
-	    ParseReturn r;
+	    int r;
 	    final int min = ((JCBNFBoundedRepeation)grammar).minCount;
 	    final int max = ((JCBNFBoundedRepeation)grammar).maxCount;
 	    final GrammarElement g = ((JCBNFBoundedRepeation)grammar).element;
-	    HashMap<String, ArrayDeque<int[]>>[] nstorages = storages;
-	    if (storagePtr == storages.length)
-	    {
-		@SuppressWarnings({"all", "unchecked", "rawtypes"})
-		final HashMap<String, ArrayDeque<int[]>>[] nnstorages = (HashMap<String, ArrayDeque<int[]>>[])(new HashMap[storagePtr << 1]);
-		System.arraycopy(storages, 0, nnstorages, 0, storagePtr);
-		nstorages = nnstorages;
-	    }
-	    nstorages[storagePtr] = null;
+	    
+	    if ((this.context.tracer == null) && ((max < 0) || (max >= min)) &&
+		((g instanceof JCBNFCharacters) || (g instanceof JCBNFString) || (g instanceof JCBNFWordString)))
+		return scan(data, off, g, min, max);
 	    
 	    int es = elementalState;
 	    es |= min == 0 ? OPTION : 0;
@@ -299,102 +296,175 @@ public class ParseTree
 	    int offset = off;
 	    for (int i = 0; i < min; i++)
 	    {
-		r = parse(data, offset, g, nstorages, storagePtr + 1, reads, readPtr, (byte)es);
-		if ((r == null) || (r.read < 0))
-		    return null;
-		offset = r.read;
-		rc.cat(r);
-		if (nstorages[storagePtr] == null)
-		    nstorages[storagePtr] = rc.storage;
+		r = parse(data, offset, g, (byte)es);
+		if (r < 0)
+		    return -1;
+		offset = r;
 	    }
 	    if (this.paniced)
- 	    {   rc.read = offset;
-		return rc;
-	    }
+		return offset;
 	    for (int i = min; i != max; i++) //infinity is -1, so 'i < max' would fail
 	    {
-		r = parse(data, offset, g, nstorages, storagePtr + 1, reads, readPtr, (byte)es);
-		if ((r == null) || (r.read < 0))
+		r = parse(data, offset, g, (byte)es);
+		if (r < 0)
+		    break;
+		if ((r == offset) && (max < 0)) // a nullable element would otherwise pass forever
 		    break;
-		offset = r.read;
-		rc.cat(r);
-		if (nstorages[storagePtr] == null)
-		    nstorages[storagePtr] = rc.storage;
+		offset = r;
 		if (this.paniced)
-		{   rc.read = offset;
-		    return rc;
-		}
+		    return offset;
 	    }
 	    
-	    rc.read = offset;
-	    return rc;
+	    return offset;
 	}
 	if (grammar instanceof JCBNFJuxtaposition) //TODO %reads
 	{
-	    ParseReturn r;
+	    int r;
 	    int offset = off;
-	    HashMap<String, ArrayDeque<int[]>>[] nstorages = storages;
-	    if (storagePtr == storages.length)
-	    {
-		@SuppressWarnings({"all", "unchecked", "rawtypes"})
-	        final HashMap<String, ArrayDeque<int[]>>[] nnstorages = (HashMap<String, ArrayDeque<int[]>>[])(new HashMap[storagePtr << 1]);
-		System.arraycopy(storages, 0, nnstorages, 0, storagePtr);
-		nstorages = nnstorages;
-	    }
-	    nstorages[storagePtr] = null;
-	    
 	    
 	    for (final GrammarElement g : ((JCBNFJuxtaposition)grammar).elements)
 	    {
-		r = parse(data, offset, g, nstorages, storagePtr + 1, reads, readPtr, elementalState);
-		if ((r == null) || (r.read < 0))
-		    return null;
-		offset = r.read;
-		rc.cat(r);
-		if (nstorages[storagePtr] == null)
-		    nstorages[storagePtr] = rc.storage;
+		r = parse(data, offset, g, elementalState);
+		if (r < 0)
+		    return -1;
+		offset = r;
 		if (this.paniced)
-		{   rc.read = offset;
-		    return rc;
-		}
+		    return offset;
 	    }
 	    
-	    rc.read = offset;
-	    return rc;
+	    return offset;
 	}
 	if (grammar instanceof JCBNFAlternation)
 	{
-	    for (final GrammarElement g : ((JCBNFAlternation)grammar).elements)
+	    if ((grammar instanceof DispatchedAlternation) && (this.paniced == false) && (this.context.tracer == null))
+		return dispatch(data, off, (DispatchedAlternation)grammar, elementalState);
+	    
+	    final Vector<GrammarElement> elements = ((JCBNFAlternation)grammar).elements;
+	    if (elements.isEmpty())
+		return off;
+	    
+	    for (final GrammarElement g : elements)
 	    {
-		rc = parse(data, off, g, storages, storagePtr, reads, readPtr, elementalState);
-		if ((rc != null) && (rc.read >= 0))
-		{
-		    if (this.paniced)
-			return rc;
-		    break;
-		}
-		rc = null;
+		final int r = parse(data, off, g, elementalState);
+		if (r >= 0)
+		    return r;
 	    }
 	    
-	    return rc;
+	    return -1;
 	}
 	if (grammar instanceof JCBNFDefinition)
 	{
-	    final String name = ((JCBNFDefinition)grammar).name;
-	    if (this.definitions.get(name) == null)
-		throw new UndefiniedDefinitionException(name);
-	    final ParseTree child = new ParseTree(this, this.definitions.get(name), this.definitions);
-	    rc.read = child.parse(data, off);
-	    if (rc.read < 0)
-		return null;
+	    final int id = ((JCBNFDefinition)grammar).id;
+	    final PackratMemo memo = this.context.memo;
+	    final ParseTree child = new ParseTree(this, id, this.grammar, this.context);
+	    final Object memoised = memo == null ? null : memo.get(id, off);
+	    if (memoised == PackratMemo.FAILED)
+		return -1;
+	    else if (memoised != null)
+		child.copy((ParseTree)memoised);
+	    else
+	    {
+		final int r = child.parse(data, off);
+		if (memo != null)
+		    memo.put(id, off, r < 0 ? PackratMemo.FAILED : child);
+		if (r < 0)
+		    return -1;
+	    }
 	    this.paniced |= child.paniced;
 	    this.compile |= child.compile;
 	    this.children.add(child);
-	    return rc;
+	    return child.intervalEnd;
 	}
 	
 	assert false : "Unrecognised grammar used!";
-	return null;
+	return -1;
+    }
+    
+    
+    /**
+     * Parses an alternation, only trying the alternatives that can pass on the next character
+     * 
+     * @param   data            The data
+     * @param   off             The offset in the data
+     * @param   alternation     The alternation
+     * @param   elementalState  Grammar element state
+     * @return                  The end of the alternation, <code>-1</code> if it did not match
+     */
+    private int dispatch(final CodePointText data, final int off, final DispatchedAlternation alternation, final byte elementalState)
+    {
+	final GrammarElement[] alternatives = alternation.alternatives;
+	final int next = off < data.length() ? data.get(off) : -1;
+	final int[] candidates = off < data.length() ? alternation.candidates(next) : alternation.atEnd;
+	
+	if (candidates != null)
+	    for (final int i : candidates)
+	    {
+		final int rc = parse(data, off, alternatives[i], elementalState);
+		if (rc >= 0)
+		    return rc;
+	    }
+	else
+	    for (int i = 0, n = alternatives.length; i < n; i++)
+		if (alternation.viable(i, next))
+		{
+		    final int rc = parse(data, off, alternatives[i], elementalState);
+		    if (rc >= 0)
+			return rc;
+		}
+	
+	return -1;
+    }
+    
+    
+    /**
+     * Parses a bounded repeat of an atom that always reads at least one character when it passes,
+     * as one loop rather than parsing each repetition as a subtree
+     * 
+     * @param   data  The data
+     * @param   off   The offset in the data
+     * @param   atom  The repeated grammar element, {@link JCBNFCharacters}, {@link JCBNFString} or {@link JCBNFWordString}
+     * @param   min   The minimum number of repetitions
+     * @param   max   The maximum number of repetitions, <code>-1</code> for infinity
+     * @return        The end of the repetitions, <code>-1</code> if it did not pass
+     */
+    int scan(final CodePointText data, final int off, final GrammarElement atom, final int min, final int max)
+    {
+	if (atom instanceof JCBNFCharacters)
+	{
+	    final int n = data.length();
+	    final int end = (max < 0) || (max >= n - off) ? n : (off + max);
+	    
+	    final int rc;
+	    if (atom instanceof JCBNFCharacters.JCBNFCharacterSet)
+		rc = data.span(((JCBNFCharacters.JCBNFCharacterSet)atom).set, off, end);
+	    else
+	    {
+		final JCBNFCharacters set = (JCBNFCharacters)atom;
+		int i = off;
+		while ((i < end) && set.contains(data.get(i)))
+		    i++;
+		rc = i;
+	    }
+	    
+	    if (rc - off < min)
+		return -1;
+	    return this.paniced ? (off + min) : rc;
+	}
+	
+	int offset = off;
+	for (int i = 0; i != max; i++) //infinity is -1, so 'i < max' would fail
+	{
+	    if ((i == min) && this.paniced)
+		break;
+	    
+	    final int read = Parser.passes(data, offset, atom);
+	    if (read < 0)
+		return i < min ? -1 : offset;
+	    if (read == 0) // an empty string, every remaining repetition passes here
+		break;
+	    offset += read;
+	}
+	return offset;
     }
     
     
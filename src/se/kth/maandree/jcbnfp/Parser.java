@@ -21,43 +21,172 @@ import se.kth.maandree.jcbnfp.elements.*;
 
 import java.util.*;
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 
 
 /**
- * Code parser class using parsed syntax
+ * <p>Code parser class using parsed syntax</p>
+ * <p>
+ *   A parser is immutable, and can be shared by any number of threads that parse at the same
+ *   time; everything a parse changes is kept in its {@link ParseContext}. If a tracer is used,
+ *   it is shared by the parses and must be thread-safe itself.
+ * </p>
  * 
  * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
  */
 public class Parser
 {
+    /**
+     * The maximum number of bytes of a file to map into memory at once
+     */
+    private static final long MAP_SIZE = 1L << 30;
+    
+    
+    
     /**
      * Constructor
      * 
      * @param  definitions  Definition map
      * @param  main         The main definition, normally the title of the JCBNF file
+     * 
+     * @throws  UndefiniedDefinitionException  If the JCBNF file is refering to an undefinied definition
      */
-    public Parser(final HashMap<String, Definition> definitions, final String main)
+    public Parser(final HashMap<String, Definition> definitions, final String main) throws UndefiniedDefinitionException
     {
-	this.definitions = definitions;
-	this.main = main;
+	this(definitions, main, false);
     }
     
+    /**
+     * Constructor
+     * 
+     * @param  definitions  Definition map
+     * @param  main         The main definition, normally the title of the JCBNF file
+     * @param  packrat      Whether to memoise the result of each definition at each offset
+     * 
+     * @throws  UndefiniedDefinitionException  If the JCBNF file is refering to an undefinied definition
+     */
+    public Parser(final HashMap<String, Definition> definitions, final String main, final boolean packrat) throws UndefiniedDefinitionException
+    {
+	this(new Grammar(definitions), main, packrat);
+    }
     
+    /**
+     * Constructor
+     * 
+     * @param  grammar  The compiled grammar
+     * @param  main     The main definition, normally the title of the JCBNF file
+     * 
+     * @throws  UndefiniedDefinitionException  If the main definition is undefinied
+     */
+    public Parser(final Grammar grammar, final String main) throws UndefiniedDefinitionException
+    {
+	this(grammar, main, false);
+    }
     
     /**
-     * Definition map
+     * Constructor
+     * 
+     * @param  grammar  The compiled grammar
+     * @param  main     The main definition, normally the title of the JCBNF file
+     * @param  packrat  Whether to memoise the result of each definition at each offset
+     * 
+     * @throws  UndefiniedDefinitionException  If the main definition is undefinied
      */
-    private final HashMap<String, Definition> definitions;
+    public Parser(final Grammar grammar, final String main, final boolean packrat) throws UndefiniedDefinitionException
+    {
+	this(grammar, main, packrat, null);
+    }
     
     /**
-     * The main definition
+     * Constructor
+     * 
+     * @param  grammar  The compiled grammar
+     * @param  main     The main definition, normally the title of the JCBNF file
+     * @param  packrat  Whether to memoise the result of each definition at each offset
+     * @param  tracer   Parse tracer, <code>null</code> to not trace the parsing
+     * 
+     * @throws  UndefiniedDefinitionException  If the main definition is undefinied
      */
-    private final String main;
+    public Parser(final Grammar grammar, final String main, final boolean packrat, final ParseTracer tracer) throws UndefiniedDefinitionException
+    {
+	this(grammar, main, packrat, tracer, Engine.RECURSIVE);
+    }
+    
+    /**
+     * Constructor
+     * 
+     * @param  grammar  The compiled grammar
+     * @param  main     The main definition, normally the title of the JCBNF file
+     * @param  packrat  Whether to memoise the result of each definition at each offset
+     * @param  tracer   Parse tracer, <code>null</code> to not trace the parsing
+     * @param  engine   The parse engine to use
+     * 
+     * @throws  UndefiniedDefinitionException  If the main definition is undefinied
+     * @throws  UnsupportedOperationException  If the compiled engine is used but no Java compiler is available
+     * @throws  IllegalStateException          If the compiled engine is used but the generated parser could not be compiled or loaded
+     */
+    public Parser(final Grammar grammar, final String main, final boolean packrat, final ParseTracer tracer, final Engine engine) throws UndefiniedDefinitionException
+    {
+	this.grammar = grammar;
+	this.tracer = tracer;
+	this.instructions = engine == Engine.STACK ? grammar.getInstructions() : null;
+	this.stackEngines = this.instructions == null ? null : new ThreadLocal<StackEngine>()
+	    {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		protected StackEngine initialValue()
+		{
+		    return new StackEngine(Parser.this.instructions);
+		}
+	    };
+	this.compiledParser = (engine == Engine.COMPILED) && (tracer == null) ? grammar.getCompiledParser() : null;
+	this.main = grammar.getId(main);
+	this.unmemoisable = packrat ? PackratMemo.findUnmemoisable(grammar) : null;
+	
+	if (this.main < 0)
+	    throw new UndefiniedDefinitionException(main);
+    }
+    
+    
+    
+    /**
+     * The compiled grammar
+     */
+    private final Grammar grammar;
+    
+    /**
+     * The id of the main definition
+     */
+    private final int main;
+    
+    /**
+     * Parse tracer, <code>null</code> if not used
+     */
+    private final ParseTracer tracer;
     
     /**
-     * The data in the last read stream
+     * The grammar flattened into instructions, <code>null</code> if the explicit stack parse engine is not used
      */
-    public int[] data;
+    private final Instructions instructions;
+    
+    /**
+     * The explicit stack parse engine of each thread, so that its frames are reused between
+     * the parses of a thread, <code>null</code> if the explicit stack parse engine is not used
+     */
+    private final ThreadLocal<StackEngine> stackEngines;
+    
+    /**
+     * The parser generated for the grammar, <code>null</code> if the compiled engine is not used
+     */
+    private final CompiledParser compiledParser;
+    
+    /**
+     * Definitions that may not be memoised, <code>null</code> if packrat parsing is not used
+     */
+    private final boolean[] unmemoisable;
     
     
     
@@ -67,59 +196,134 @@ public class Parser
      * @param   is  The data stream to parse
      * @return      The tree with the result, describing the data, <code>null</code> if the gammar does not match
      * 
-     * @throws  IOException                    On I/O exception
-     * @throws  UndefiniedDefinitionException  If the JCBNF file is refering to an undefinied definition
+     * @throws  IOException  On I/O exception
      */
-    public ParseTree parse(final InputStream is) throws IOException, UndefiniedDefinitionException
+    public ParseTree parse(final InputStream is) throws IOException
     {
-	final int BUF_SIZE = 2048;
-	final ArrayList<int[]> bufs = new ArrayList<int[]>();
-	int[] buf = new int[BUF_SIZE];
-	int ptr = 0;
-	
-	for (int d; (d = is.read()) != -1;)
+	return parse(UTF8Decoder.decode(is), new ParseContext());
+    }
+    
+    
+    /**
+     * Parses a stream and builds a tree of the result, aborting if the parse exceeds its limits
+     * 
+     * @param   is      The data stream to parse
+     * @param   limits  The limits of the parse, <code>null</code> for none
+     * @return          The tree with the result, describing the data, <code>null</code> if the gammar does not match
+     * 
+     * @throws  IOException          On I/O exception
+     * @throws  ParseLimitException  If the parse exceeds its limits or is cancelled
+     */
+    public ParseTree parse(final InputStream is, final ParseLimits limits) throws IOException
+    {
+	return parse(UTF8Decoder.decode(is), new ParseContext(limits));
+    }
+    
+    
+    /**
+     * Parses a stream and builds a tree of the result, in a context created by the caller
+     * 
+     * @param   is       The data stream to parse
+     * @param   context  The context of the parse, which must not have been used
+     * @return           The tree with the result, describing the data, <code>null</code> if the gammar does not match
+     * 
+     * @throws  IOException            On I/O exception
+     * @throws  ParseLimitException    If the parse exceeds its limits or is cancelled
+     * @throws  IllegalStateException  If the context has already been used
+     */
+    public ParseTree parse(final InputStream is, final ParseContext context) throws IOException
+    {
+	return parse(UTF8Decoder.decode(is), context);
+    }
+    
+    
+    /**
+     * Parses a file and builds a tree of the result, the file is mapped
+     * into memory and decoded from there rather than read as a stream
+     * 
+     * @param   file  The file to parse
+     * @return        The tree with the result, describing the data, <code>null</code> if the gammar does not match
+     * 
+     * @throws  IOException  On I/O exception
+     */
+    public ParseTree parse(final Path file) throws IOException
+    {
+	return parse(file, new ParseContext());
+    }
+    
+    
+    /**
+     * Parses a file and builds a tree of the result, aborting if the parse exceeds its limits;
+     * the file is mapped into memory and decoded from there rather than read as a stream
+     * 
+     * @param   file    The file to parse
+     * @param   limits  The limits of the parse, <code>null</code> for none
+     * @return          The tree with the result, describing the data, <code>null</code> if the gammar does not match
+     * 
+     * @throws  IOException          On I/O exception
+     * @throws  ParseLimitException  If the parse exceeds its limits or is cancelled
+     */
+    public ParseTree parse(final Path file, final ParseLimits limits) throws IOException
+    {
+	return parse(file, new ParseContext(limits));
+    }
+    
+    
+    /**
+     * Parses a file and builds a tree of the result, in a context created by the caller;
+     * the file is mapped into memory and decoded from there rather than read as a stream
+     * 
+     * @param   file     The file to parse
+     * @param   context  The context of the parse, which must not have been used
+     * @return           The tree with the result, describing the data, <code>null</code> if the gammar does not match
+     * 
+     * @throws  IOException            On I/O exception
+     * @throws  ParseLimitException    If the parse exceeds its limits or is cancelled
+     * @throws  IllegalStateException  If the context has already been used
+     */
+    public ParseTree parse(final Path file, final ParseContext context) throws IOException
+    {
+	final CodePointText text;
+	final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+	try
 	{
-	    if ((d & 0xC0) == 0xC0)
-	    {
-		int n = 0;
-		while ((d & 0x80) == 0x80)
-		{
-		    n++;
-		    d <<= 1;
-		}
-		d = (d & 255) >> n;
-		for (int i = 1; i < n; i++)
-		{
-		    final int v = is.read();
-		    if ((v & 0xC0) != 0x80)
-			break;
-		    d = (d << 6) | (v & 0x7F);
-		}
-	    }
-	    buf[ptr++] = d;
-	    
-	    if (ptr == BUF_SIZE)
-	    {
-		bufs.add(buf);
-		ptr = 0;
-		buf = new int[BUF_SIZE];
-	    }
+	    final long size = channel.size();
+	    final UTF8Decoder decoder = new UTF8Decoder((int)Math.min(size, Integer.MAX_VALUE - 8));
+	    for (long pos = 0; pos < size; pos += MAP_SIZE)
+		decoder.decode(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_SIZE, size - pos)));
+	    decoder.finish();
+	    text = decoder.toText();
 	}
-	
-	final int[] text = new int[bufs.size() * BUF_SIZE + ptr];
-	int p = 0;
-	for (final int[] b : bufs)
+	finally
 	{
-	    System.arraycopy(b, 0, text, p, BUF_SIZE);
-	    p += BUF_SIZE;
+	    channel.close();
 	}
-	bufs.clear();
-	System.arraycopy(buf, 0, text, p, ptr);
-	
-	
-	final Definition root = this.definitions.get(this.main);
-	final ParseTree tree = new ParseTree(null, root, this.definitions);
-	if (tree.parse(this.data = text, 0) < 0)
+	return parse(text, context);
+    }
+    
+    
+    /**
+     * Parses decoded data and builds a tree of the result
+     * 
+     * @param   text     The data to parse
+     * @param   context  The context of the parse, which must not have been used
+     * @return           The tree with the result, describing the data, <code>null</code> if the gammar does not match
+     * 
+     * @throws  ParseLimitException    If the parse exceeds its limits or is cancelled
+     * @throws  IllegalStateException  If the context has already been used
+     */
+    ParseTree parse(final CodePointText text, final ParseContext context)
+    {
+	context.begin(this.grammar, text, this.unmemoisable == null ? null : new PackratMemo(this.unmemoisable), this.tracer);
+	final ParseTree tree = new ParseTree(null, this.main, this.grammar, context);
+	final int read;
+	if (this.compiledParser != null)
+	    read = this.compiledParser.parse(tree, text, 0);
+	else if (this.stackEngines != null)
+	    read = this.stackEngines.get().parse(tree, text, 0);
+	else
+	    read = tree.parse(text, 0);
+	if (read < 0)
 	    return null;
 	return tree;
     }
@@ -137,15 +341,15 @@ public class Parser
      * @param   end    The end of the stored data chunk, exclusive
      * @return         <code>-1</code> if it didn't pass, otherwise, the number of used characters
      */
-    static int passes(final int[] data, final int off, final int start, final int end)
+    static int passes(final CodePointText data, final int off, final int start, final int end)
     {
 	final int n = end - start;
 	
-	if (data.length - off < n)
+	if (data.length() - off < n)
 	    return -1;
 	
 	for (int i = 0; i < n; i++)
-	    if (data[i + off] != data[i + start])
+	    if (data.get(i + off) != data.get(i + start))
 		return -1;
 	
 	return n;
@@ -153,7 +357,11 @@ public class Parser
     
     
     /**
-     * Tests whether the data can pass a stored data chunk, with replacement
+     * Tests whether the data can pass a stored data chunk, with replacement; every occurrence
+     * of the replacee, from left to right and without overlap, is replaced by the replacer.
+     * The occurrences are found with the Knuth–Morris–Pratt algorithm while the stored data
+     * chunk is compared against the data, so nothing is allocated and the time is linear
+     * in the length of the stored data chunk and the number of used characters.
      * 
      * @param   data      The data
      * @param   off       The offset in the data
@@ -161,49 +369,97 @@ public class Parser
      * @param   end       The end of the stored data chunk, exclusive
      * @param   replacee  The replacement replacee
      * @param   replacer  The replacement replacer
+     * @param   borders   The length of the longest proper border of each prefix of the replacee, by the prefix's length less one
      * @return            <code>-1</code> if it didn't pass, otherwise, the number of used characters
      */
-    static int passes(final int[] data, final int off, final int start, final int end, final int[] replacee, final int[] replacer)
+    static int passes(final CodePointText data, final int off, final int start, final int end,
+		      final int[] replacee, final int[] replacer, final int[] borders)
     {
-	final boolean[] preset = new boolean[256];
-	final HashSet<Integer> set = new HashSet<Integer>();
+	final int m = replacee.length;
+	if (m == 0)
+	    return passes(data, off, start, end);
 	
-	outer:
-	    for (int j = start; j < end; j++)
-		if (data[j] == replacee[0]) //yes, this not that effecive, but who cares, compiling code should take hours
-		{
-		    final int n = replacee.length;
-		    if (j + n < data.length)
-			break;
-		    
-		    for (int i = 0; i < n; i++)
-			if (data[j + i] != replacee[i])
-			    continue outer;
-		    
-		    preset[j] = true;
-		    set.add(Integer.valueOf(j));
-		    j += replacee.length;
-		}
+	final int n = data.length();
+	int i = off;
+	int q = 0; // the number of pending characters, they are the replacee's first characters
 	
-	int j = start;
-	for (int i = off, n = data.length; j < end; i++, j++)
+	for (int j = start; j < end; j++)
 	{
-	    if (i >= n)
-		return -1;
+	    final int c = data.get(j);
 	    
-	    if (preset[j & 255] && set.contains(new Integer(j)))
+	    while ((q > 0) && (replacee[q] != c))
 	    {
-		for (int k = 0, m = replacer.length; k < m; k++, i++)
-		    if (data[i] != replacer[k])
-			return -1;
-		j += replacee.length;
+		final int b = borders[q - 1];
+		if (passesPrefix(data, i, replacee, q - b) == false) // the characters that can no longer be in an occurrence are kept
+		    return -1;
+		i += q - b;
+		q = b;
 	    }
 	    
-	    if (data[i] != data[j])
-		return -1;
+	    if (replacee[q] != c)
+	    {
+		if ((i >= n) || (data.get(i) != c))
+		    return -1;
+		i++;
+	    }
+	    else if (++q == m)
+	    {
+		if (passesPrefix(data, i, replacer, replacer.length) == false)
+		    return -1;
+		i += replacer.length;
+		q = 0;
+	    }
 	}
 	
-	return j - start;
+	if (passesPrefix(data, i, replacee, q) == false)
+	    return -1;
+	return i + q - off;
+    }
+    
+    
+    /**
+     * Tests whether the data can pass the first characters of a string
+     * 
+     * @param   data    The data
+     * @param   off     The offset in the data
+     * @param   string  The string
+     * @param   count   The number of characters of the string
+     * @return          Whether the data can pass the characters
+     */
+    private static boolean passesPrefix(final CodePointText data, final int off, final int[] string, final int count)
+    {
+	if (data.length() - off < count)
+	    return false;
+	
+	for (int i = 0; i < count; i++)
+	    if (data.get(i + off) != string[i])
+		return false;
+	
+	return true;
+    }
+    
+    
+    /**
+     * Tests whether the data can pass a backtrack, that is, the latest capture of its name that is in scope
+     * 
+     * @param   data          The data
+     * @param   off           The offset in the data
+     * @param   grammar       The backtrack
+     * @param   captureStack  The named capture stack
+     * @return                <code>-1</code> if it didn't pass, otherwise, the number of used characters
+     */
+    static int passes(final CodePointText data, final int off, final JCBNFBacktrack grammar, final CaptureStack captureStack)
+    {
+	final int capture = captureStack.find(grammar.slot);
+	if (capture < 0)
+	    return -1;
+	
+	final int start = captureStack.start(capture);
+	final int end = captureStack.end(capture);
+	
+	if (grammar.replaceeString == null)
+	    return passes(data, off, start, end);
+	return passes(data, off, start, end, grammar.replaceeString, grammar.replacerString, grammar.replaceeBorders);
     }
     
     
@@ -216,146 +472,165 @@ public class Parser
      * @return        <code>-1</code> if it didn't pass, <code>-2</code> if not atomary,
      *                otherwise, the number of used characters
      */
-    static int passes(final int[] data, final int off, final GrammarElement def)
+    static int passes(final CodePointText data, final int off, final GrammarElement def)
     {
 	if (def == null)
 	    return 0;
 	
-	final int m = data.length;
-	
 	if (def instanceof JCBNFString)
-	{
-	    final int[] grammar = ((JCBNFString)def).string;
-	    final int n = grammar.length;
-	    
-	    if (off + n >= m)
-		return -1;
-	    
-	    for (int i = 0; i < n; i++)
-		if (data[i + off] != grammar[i])
-		    return -1;
-	    
-	    return n;
-	}
+	    return passesString(data, off, ((JCBNFString)def).string);
 	if (def instanceof JCBNFWordString)
-	{
-	    final int[] grammar = ((JCBNFWordString)def).string;
-	    final int n = grammar.length;
-	    
-	    if (off + n >= m)
-		return -1;
-	    
-	    int prev = off >= 0 ? -1 : data[off - 1];
-	    int next = off >= m ? -1 : data[off];
-	    
-	    if (JCBNFCheck.w.check(prev, next) == false)
-		return -1;
-	    
-	    for (int i = 0; i < n; i++)
-		if (data[i + off] != grammar[i])
-		    return -1;
-	    
-	    prev = off + n >= 0 ? -1 : data[off + m - 1];
-	    next = off + n >= m ? -1 : data[off + m];
-	    
-	    if (JCBNFCheck.w.check(prev, next) == false)
-		return -1;
-	    
-	    return n;
-	}
+	    return passesWord(data, off, ((JCBNFWordString)def).string);
+	if (def instanceof JCBNFStringTrie)
+	    return ((JCBNFStringTrie)def).passes(data, off);
 	if (def instanceof JCBNFPartialString)
-	{
-	    final int[] grammar = ((JCBNFPartialString)def).string;
-	    final int n = grammar.length;
-	    
-	    if (n == 0)
-		return 0;
-	    
-	    if ((off >= m) || (data[off] != grammar[0]))
-		return -1;
-	    
-	    for (int i = 1; i < n; i++)
-		if ((i + off >= m) || (data[i + off] != grammar[i]))
-		    return i;
-	    
-	    return n;
-	}
+	    return passesPartial(data, off, ((JCBNFPartialString)def).string);
 	if (def instanceof JCBNFCharacters)
-        {
+	{
 	    final JCBNFCharacters grammar = (JCBNFCharacters)def;
 	    
-	    if (off >= m)
+	    if (off >= data.length())
 		return -1;
 	    
-	    return grammar.contains(data[off]) ? 1 : -1;
+	    return grammar.contains(data.get(off)) ? 1 : -1;
 	}
 	if (def instanceof JCBNFCheck)
-	{
-	    final JCBNFCheck grammar = (JCBNFCheck)def;
-	    
-	    final int prev = off <= 0 ? -1 : data[off - 1];
-	    final int next = off >= m ? -1 : data[off];
-	    
-	    return grammar.check(prev, next) ? 0 : -1;
-	}
+	    return passesCheck(data, off, (JCBNFCheck)def);
 	
 	return -2;
     }
     
     
     /**
-     * Simplifies a grammar node so that only bounded repeat (without option),
-     * juxtaposition, alternation, store and backtracks (with and without replacements)
-     * as well as atoms are used.
+     * Tests whether the data can pass a string
      * 
-     * @param   element  The grammar element
-     * @return           The grammar element simplified
+     * @param   data     The data
+     * @param   off      The offset in the data
+     * @param   grammar  The string
+     * @return           <code>-1</code> if it didn't pass, otherwise, the number of used characters
      */
-    static GrammarElement assemble(final GrammarElement element)
+    static int passesString(final CodePointText data, final int off, final int[] grammar)
     {
-	GrammarElement elem = element;
+	final int n = grammar.length;
 	
-	while (elem != null)
-	    if (elem instanceof JCBNFGroup)
-		elem = ((JCBNFGroup)elem).element;
-	    else if (elem instanceof JCBNFOption)
-	    {
-		final JCBNFBoundedRepeation bndrep = new JCBNFBoundedRepeation(0, 1);
-		bndrep.element = ((JCBNFOption)elem).element;
-		elem = bndrep;
-	    }
-	    else if (elem instanceof JCBNFRepeation)
-	    {
-		final JCBNFBoundedRepeation bndrep = new JCBNFBoundedRepeation(1, -1);
-		bndrep.element = ((JCBNFRepeation)elem).element;
-		elem = bndrep;
-	    }
-	    else if ((elem instanceof JCBNFBoundedRepeation) && (((JCBNFBoundedRepeation)elem).option != null))
-	    {
-		final JCBNFBoundedRepeation e = (JCBNFBoundedRepeation)elem;
-		final JCBNFJuxtaposition juxta = new JCBNFJuxtaposition();
-		final JCBNFBoundedRepeation opt = new JCBNFBoundedRepeation(0, -1);
-		opt.element = e.option;
-		e.option = null;
-		juxta.elements.add(opt);
-		juxta.elements.add(e.element);
-		e.element = juxta;
-	    }
-	    else if ((elem instanceof JCBNFJuxtaposition) && (((JCBNFJuxtaposition)elem).elements.size() <= 1))
-		if (((JCBNFJuxtaposition)elem).elements.size() == 1)
-		    elem = ((JCBNFJuxtaposition)elem).elements.get(0);
-		else
-		    break;
-	    else if ((elem instanceof JCBNFAlternation) && (((JCBNFAlternation)elem).elements.size() <= 1))
-		if (((JCBNFAlternation)elem).elements.size() == 1)
-		    elem = ((JCBNFAlternation)elem).elements.get(0);
-		else
-		    break;
-	    else
-		break;
+	if (off + n >= data.length())
+	    return -1;
+	
+	for (int i = 0; i < n; i++)
+	    if (data.get(i + off) != grammar[i])
+		return -1;
+	
+	return n;
+    }
+    
+    
+    /**
+     * Tests whether the data can pass a word string
+     * 
+     * @param   data     The data
+     * @param   off      The offset in the data
+     * @param   grammar  The string of the word string
+     * @return           <code>-1</code> if it didn't pass, otherwise, the number of used characters
+     */
+    static int passesWord(final CodePointText data, final int off, final int[] grammar)
+    {
+	final int n = grammar.length;
+	final int m = data.length();
+	
+	if (off + n >= m)
+	    return -1;
+	
+	int prev = off <= 0 ? -1 : data.get(off - 1);
+	int next = off >= m ? -1 : data.get(off);
+	
+	if (JCBNFCheck.w.check(prev, next) == false)
+	    return -1;
+	
+	for (int i = 0; i < n; i++)
+	    if (data.get(i + off) != grammar[i])
+		return -1;
+	
+	prev = off + n <= 0 ? -1 : data.get(off + n - 1);
+	next = off + n >= m ? -1 : data.get(off + n);
+	
+	if (JCBNFCheck.w.check(prev, next) == false)
+	    return -1;
+	
+	return n;
+    }
+    
+    
+    /**
+     * Tests whether the data can pass a partial string
+     * 
+     * @param   data     The data
+     * @param   off      The offset in the data
+     * @param   grammar  The string of the partial string
+     * @return           <code>-1</code> if it didn't pass, otherwise, the number of used characters
+     */
+    static int passesPartial(final CodePointText data, final int off, final int[] grammar)
+    {
+	final int n = grammar.length;
+	final int m = data.length();
+	
+	if (n == 0)
+	    return 0;
+	
+	if ((off >= m) || (data.get(off) != grammar[0]))
+	    return -1;
+	
+	for (int i = 1; i < n; i++)
+	    if ((i + off >= m) || (data.get(i + off) != grammar[i]))
+		return i;
+	
+	return n;
+    }
+    
+    
+    /**
+     * Tests whether the data can pass a check
+     * 
+     * @param   data     The data
+     * @param   off      The offset in the data
+     * @param   grammar  The check
+     * @return           <code>-1</code> if it didn't pass, otherwise, <code>0</code>
+     */
+    static int passesCheck(final CodePointText data, final int off, final JCBNFCheck grammar)
+    {
+	final int prev = off <= 0 ? -1 : data.get(off - 1);
+	final int next = off >= data.length() ? -1 : data.get(off);
+	
+	return grammar.check(prev, next) ? 0 : -1;
+    }
+    
+    
+    
+    /**
+     * Parse engines
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    public static enum Engine
+    {
+	/**
+	 * Parse engine that recurses on the Java call stack for every grammar element,
+	 * deep input may require a larger thread stack
+	 */
+	RECURSIVE,
+	
+	/**
+	 * Parse engine that interprets the grammar flattened into an array of instructions, using
+	 * an explicit stack on the heap, so it can parse arbitrarily deep input
+	 */
+	STACK,
+	
+	/**
+	 * Parse engine that runs a parser generated for the grammar and compiled into Java bytecode,
+	 * the grammar is compiled the first time it is used with this engine, which requires a JDK;
+	 * parsing cannot be traced, so the recursive engine is used if a tracer is specified
+	 */
+	COMPILED,
 	
-	return elem;
     }
     
 }
-
@@ -0,0 +1,106 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.util.*;
+import java.io.*;
+
+
+/**
+ * <p>This is the main entry point of the JCBNF parser generator program</p>
+ * <p>
+ *   It generates the Java source of a standalone parser for a syntax file, and prints it
+ *   to stdout; the arguments are the syntax file, the name of the generated class and,
+ *   optionally, its package.
+ * </p>
+ * 
+ * @author   Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class ParserGenerator
+{
+    /**
+     * Forbidden constructor
+     */
+    private ParserGenerator()
+    {
+	assert false : "You may not create instances of this class.";
+    }
+    
+    
+    
+    /**
+     * This is the main entry point of the JCBNF parser generator program
+     * 
+     * @param  args  Command line arguments
+     */
+    public static void main(final String... args)
+    {
+	if ((args.length != 2) && (args.length != 3))
+	{
+	    System.err.println("USAGE: ParserGenerator <syntax file> <class name> [<package>]");
+	    System.exit(1);
+	    return;
+	}
+	
+	final String jcbnfFile   = args[0];
+	final String className   = args[1];
+	final String packageName = args.length == 3 ? args[2] : null;
+	
+	InputStream gis = null;
+	try
+	{
+	    gis = new BufferedInputStream(new FileInputStream(new File(jcbnfFile)));
+	    final HashMap<String, Definition> defs = GrammarParser.parseGrammar(gis);
+	    
+	    System.out.print(StandaloneGrammarCompiler.generate(new Grammar(defs), className, packageName));
+	    System.out.flush();
+	}
+	catch (final SyntaxFileError err)
+	{
+	    System.err.println("ERROR: " + err.getMessage());
+	    if (err.getCause() != null)
+		err.getCause().printStackTrace(System.err);
+	}
+	catch (final UndefiniedDefinitionException err)
+	{
+	    System.err.println("ERROR: " + err.getMessage());
+	}
+	catch (final RuntimeException err)
+	{
+	    System.err.print("ERROR: ");
+	    err.printStackTrace(System.err);
+	}
+	catch (final Throwable err)
+	{
+	    System.err.println("---SYSTEM ERROR---");
+	    err.printStackTrace(System.err);
+	}
+	finally
+	{
+	    if (gis != null)
+		try
+		{   gis.close();
+		}
+		catch (final Throwable err)
+		{   //Ignore
+		}
+	}
+    }
+    
+}
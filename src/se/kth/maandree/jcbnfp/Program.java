@@ -20,6 +20,8 @@ package se.kth.maandree.jcbnfp;
 
 import java.util.*;
 import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 
 
 /**
@@ -56,12 +58,29 @@ public class Program
 	final String jcbnfFile = args[0];
 	final String parseFile = args[1];
 	final String main      = args[2];
+	boolean packrat = false, verbose = false, batch = false;
+	long maxSteps = -1, timeout = -1;
+	int maxDepth = -1, threads = Runtime.getRuntime().availableProcessors();
+	Parser.Engine engine = Parser.Engine.RECURSIVE;
+	for (int i = 3; i < args.length; i++)
+	    if      (args[i].equals("--packrat"))   packrat = true;
+	    else if (args[i].equals("--verbose"))   verbose = true;
+	    else if (args[i].equals("--stack"))     engine = Parser.Engine.STACK;
+	    else if (args[i].equals("--compiled"))  engine = Parser.Engine.COMPILED;
+	    else if (args[i].equals("--max-steps")) maxSteps = Long.parseLong(args[++i]);
+	    else if (args[i].equals("--timeout"))   timeout = Long.parseLong(args[++i]);
+	    else if (args[i].equals("--max-depth")) maxDepth = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("--batch"))     batch = true;
+	    else if (args[i].equals("--threads"))   threads = Integer.parseInt(args[++i]);
 	
-	InputStream gis = null, fis = null;
+	InputStream gis = null;
 	try
 	{
-	    System.setOut(devNull);
-	    System.setErr(devNull);
+	    if (verbose == false)
+	    {
+		System.setOut(devNull);
+		System.setErr(devNull);
+	    }
 	    
 	    System.out.println("--- Parsing Syntax ---\n\n");
 	    
@@ -75,9 +94,23 @@ public class Program
 	    
 	    System.out.println("--- Parsing code ---\n\n");
 	    
-	    final Parser parser = new Parser(defs, main);
-	    fis = new BufferedInputStream(new FileInputStream(new File(parseFile)));
-	    final ParseTree tree = parser.parse(fis);
+	    final Grammar grammar = new Grammar(defs);
+	    for (final String name : grammar.getNullableRepeats())
+		stderr.println("WARNING: " + name + " repeats a nullable element without bound, the repeat ends at the first repetition that reads nothing");
+	    
+	    final Parser parser = new Parser(grammar, main, packrat, verbose && (batch == false) ? ParseTracer.VERBOSE : null, engine);
+	    final ParseLimits limits = (maxSteps < 0) && (timeout < 0) && (maxDepth < 0) ? null : new ParseLimits(maxSteps, timeout, maxDepth);
+	    
+	    if (batch)
+	    {
+		System.setOut(stdout);
+		System.setErr(stderr);
+		batch(parser, new File(parseFile).toPath(), threads, limits);
+		return;
+	    }
+	    
+	    final ParseContext context = new ParseContext(limits);
+	    final ParseTree tree = parser.parse(new File(parseFile).toPath(), context);
 	    System.out.println("\n");
 	    
 	    System.setOut(stdout);
@@ -88,9 +121,13 @@ public class Program
 	    else
 	    {
 		System.out.println("--- Parsed code ---\n\n");
-		printTree(tree, parser.data);
+		printTree(tree, context.getText());
 		System.out.println("\n");
 	    }
+	    
+	    if (packrat)
+		System.out.println("Packrat memo: " + context.getMemoHits() + " hits of " + context.getMemoLookups() +
+				   " lookups (" + Math.round(context.getMemoHitRate() * 100.) + " %)");
 	}
 	catch (final SyntaxFileError err)
 	{
@@ -106,6 +143,12 @@ public class Program
 	    System.setErr(stderr);
 	    System.err.println("ERROR: " + err.getMessage());
 	}
+	catch (final ParseLimitException err)
+	{
+	    System.setOut(stdout);
+	    System.setErr(stderr);
+	    System.err.println("ERROR: " + err.getMessage());
+	}
 	catch (final RuntimeException err)
 	{
 	    System.setOut(stdout);
@@ -129,14 +172,59 @@ public class Program
 		catch (final Throwable err)
 		{   //Ignore
 		}
-	    if (fis != null)
-		try
-		{   fis.close();
+	}
+    }
+    
+    
+    /**
+     * Parses many files in parallel and prints the result of each file, and statistics at the end
+     * 
+     * @param  parser   The parser
+     * @param  inputs   A directory with the files to parse, or a file that lists the files to parse, one per line
+     * @param  threads  The number of threads to parse on
+     * @param  limits   The limits of each parse, <code>null</code> for none
+     * 
+     * @throws  IOException           On I/O exception
+     * @throws  InterruptedException  If interrupted
+     */
+    public static void batch(final Parser parser, final Path inputs, final int threads, final ParseLimits limits) throws IOException, InterruptedException
+    {
+	final List<Path> files;
+	if (Files.isDirectory(inputs))
+	    files = BatchParser.listFiles(inputs);
+	else
+	{
+	    files = new ArrayList<Path>();
+	    for (final String line : Files.readAllLines(inputs, StandardCharsets.UTF_8))
+		if (line.isEmpty() == false)
+		    files.add(Paths.get(line));
+	}
+	
+	final BatchParser.Statistics statistics = new BatchParser(parser, threads).parse(files, limits, new BatchParser.Callback()
+	    {
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void parsed(final Path file, final ParseTree tree)
+		{
+		    if (tree == null)
+			System.out.println(file + ": grammar did not match");
+		    else
+			System.out.println(file + ": " + tree.intervalEnd + " characters matched");
 		}
-		catch (final Throwable err)
-		{   //Ignore
+		
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public void failed(final Path file, final Throwable error)
+		{
+		    System.out.println(file + ": ERROR: " + error);
 		}
-	}
+	    });
+	
+	System.out.println(statistics);
     }
     
     
@@ -148,7 +236,7 @@ public class Program
      * 
      * @throws  Exception  Yay!
      */
-    public static void printTree(final ParseTree tree, final int[] data) throws Exception
+    public static void printTree(final ParseTree tree, final CodePointText data) throws Exception
     {
 	final ArrayDeque<ParseTree> nodes = new ArrayDeque<ParseTree>();
 	final ArrayDeque<String> indents = new ArrayDeque<String>();
@@ -0,0 +1,808 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+
+
+/**
+ * <p>Parse engine that interprets the grammar flattened into {@link Instructions}, using an explicit stack of frames rather than the Java call stack</p>
+ * <p>
+ *   The engine builds exactly the same tree as {@link ParseTree#parse(CodePointText, int)},
+ *   but every grammar element and definition that is being parsed is a frame on a stack
+ *   that is allocated on the heap, so arbitrarily deep input can be parsed without a larger
+ *   thread stack. The {@link Parser} gives each thread an engine of its own, so the frames
+ *   are reused between the parses of a thread, unless a parse grew the stack very large.
+ *   Each instruction is dispatched with a switch on its opcode, and results are passed
+ *   between frames in registers, so nothing is allocated while parsing but nodes and the
+ *   named capture storage of nodes.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class StackEngine
+{
+    /**
+     * Frame kind: the parsing of the root node
+     */
+    private static final byte ROOT = 0;
+    
+    /**
+     * Frame kind: the parsing of a child node for a definition reference
+     */
+    private static final byte DEFINITION = 1;
+    
+    /**
+     * Frame kind: store
+     */
+    private static final byte STORE = 2;
+    
+    /**
+     * Frame kind: bounded repeat, before the minimum number of repetitions has been read
+     */
+    private static final byte REPEAT_MIN = 3;
+    
+    /**
+     * Frame kind: bounded repeat, after the minimum number of repetitions has been read
+     */
+    private static final byte REPEAT = 4;
+    
+    /**
+     * Frame kind: juxtaposition
+     */
+    private static final byte JUXTAPOSITION = 5;
+    
+    /**
+     * Frame kind: alternation, trying every alternative
+     */
+    private static final byte ALTERNATION = 6;
+    
+    /**
+     * Frame kind: alternation, trying the alternatives in a dispatch table entry
+     */
+    private static final byte DISPATCH = 7;
+    
+    /**
+     * Frame kind: alternation, trying the alternatives that are viable for a character outside the dispatch table
+     */
+    private static final byte DISPATCH_VIABLE = 8;
+    
+    /**
+     * The initial size of the frame stack
+     */
+    private static final int STACK_SIZE = 64;
+    
+    /**
+     * The largest frame stack that is kept after a parse, a larger stack is dropped
+     * so that one deeply nested document does not pin its frames to the thread
+     */
+    private static final int MAX_RETAINED_STACK_SIZE = 1024;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  instructions  The grammar flattened into instructions
+     */
+    StackEngine(final Instructions instructions)
+    {
+	this.instructions = instructions;
+	this.code = instructions.code;
+    }
+    
+    
+    
+    /**
+     * The grammar flattened into instructions
+     */
+    private final Instructions instructions;
+    
+    /**
+     * The instructions
+     */
+    private final int[] code;
+    
+    /**
+     * The frame stack, frames are reused between the parses of the engine
+     */
+    private Frame[] stack = new Frame[STACK_SIZE];
+    
+    /**
+     * The number of frames on the stack
+     */
+    private int sp = 0;
+    
+    /**
+     * The data being parsed
+     */
+    private CodePointText data;
+    
+    /**
+     * Whether an element is to be parsed, rather than a result returned to the top frame
+     */
+    private boolean calling;
+    
+    /**
+     * The node in which the element to be parsed is parsed
+     */
+    private ParseTree callNode;
+    
+    /**
+     * The offset at which the element to be parsed is parsed
+     */
+    private int callOff;
+    
+    /**
+     * The address of the instruction of the element to be parsed
+     */
+    private int callPc;
+    
+    /**
+     * The result to return to the top frame: the end of the parsed element, <code>-1</code> if it did not pass
+     */
+    private int result;
+    
+    
+    
+    /**
+     * Parses a tree and stores all data, exactly as {@link ParseTree#parse(CodePointText, int)}
+     * 
+     * @param   tree  The root node, which should not have been parsed
+     * @param   data  The data
+     * @param   off   The offset in the data
+     * @return        The amount of read data
+     * 
+     * @throws  ParseLimitException  If the parse exceeds its limits
+     */
+    int parse(final ParseTree tree, final CodePointText data, final int off)
+    {
+	this.data = data;
+	this.sp = 0;
+	
+	if (tree.context.budget != null)
+	    tree.context.budget.step(tree, off);
+	
+	final Frame root = push(ROOT, tree, off, -1);
+	root.child = tree;
+	call(tree, off, this.instructions.entries[tree.id]);
+	
+	try
+	{
+	    for (;;)
+		if (this.calling)
+		{
+		    this.calling = false;
+		    enter(this.callNode, this.callOff, this.callPc);
+		}
+		else
+		{
+		    final Frame frame = this.stack[this.sp - 1];
+		    if (frame.kind == ROOT)
+		    {
+			final int rc = finish(tree, off, this.result, frame.captureMark);
+			pop(frame);
+			return rc;
+		    }
+		    resume(frame, this.result);
+		}
+	}
+	finally
+	{
+	    while (this.sp > 0)
+		pop(this.stack[this.sp - 1]);
+	    if (this.stack.length > MAX_RETAINED_STACK_SIZE)
+		this.stack = new Frame[STACK_SIZE];
+	    this.data = null;
+	    this.callNode = null;
+	}
+    }
+    
+    
+    /**
+     * Starts parsing a grammar element, either the result is determined directly
+     * or a frame is pushed that requests the parsing of its first subelement
+     * 
+     * @param  node  The node in which the element is parsed
+     * @param  off   The offset in the data
+     * @param  pc    The address of the grammar element's instruction
+     */
+    private void enter(final ParseTree node, final int off, final int pc)
+    {
+	final int[] code = this.code;
+	
+	if (node.context.tracer != null)
+	    node.context.tracer.parsing(node, off, this.instructions.sources[pc]);
+	
+	switch (code[pc])
+	{
+	    case Instructions.BACKTRACK:
+		{
+		    final int read = Parser.passes(this.data, off, this.instructions.backtracks[code[pc + 1]], node.context.captureStack);
+		    this.result = read < 0 ? -1 : (off + read);
+		}
+		return;
+		
+	    case Instructions.STORE:
+		push(STORE, node, off, pc).index = node.context.captureStack.push(code[pc + 1], off);
+		call(node, off, code[pc + 2]);
+		return;
+		
+	    case Instructions.SCAN:
+		if (node.context.tracer == null)
+		    this.result = scan(node, off, code[pc + 3], code[pc + 1], code[pc + 2]);
+		else
+		    enterRepeat(node, off, pc);
+		return;
+		
+	    case Instructions.REPEAT:
+		enterRepeat(node, off, pc);
+		return;
+		
+	    case Instructions.JUXTAPOSITION:
+		push(JUXTAPOSITION, node, off, pc);
+		if (code[pc + 1] == 0)
+		    ret(off);
+		else
+		    call(node, off, code[pc + 2]);
+		return;
+		
+	    case Instructions.DISPATCH:
+		if ((node.paniced == false) && (node.context.tracer == null))
+		{
+		    final DispatchedAlternation alternation = this.instructions.alternations[code[pc + 1]];
+		    final boolean end = off >= this.data.length();
+		    final int next = end ? -1 : this.data.get(off);
+		    final int[] candidates = end ? alternation.atEnd : alternation.candidates(next);
+		    
+		    final Frame frame = push(candidates == null ? DISPATCH_VIABLE : DISPATCH, node, off, pc);
+		    frame.alternation = alternation;
+		    frame.candidates = candidates;
+		    frame.next = next;
+		    frame.index = -1;
+		    dispatch(frame);
+		}
+		else
+		    enterAlternation(node, off, pc + 2);
+		return;
+		
+	    case Instructions.ALTERNATION:
+		enterAlternation(node, off, pc + 1);
+		return;
+		
+	    case Instructions.DEFINITION:
+		{
+		    final int id = code[pc + 1];
+		    final ParseContext context = node.context;
+		    final ParseTree child = new ParseTree(node, id, node.grammar, context);
+		    final Object memoised = context.memo == null ? null : context.memo.get(id, off);
+		    if (memoised == PackratMemo.FAILED)
+		    {
+			this.result = -1;
+			return;
+		    }
+		    if (memoised != null)
+		    {
+			child.copy((ParseTree)memoised);
+			this.result = adopt(node, child);
+			return;
+		    }
+		    
+		    if (context.budget != null)
+			context.budget.step(child, off);
+		    push(DEFINITION, node, off, pc).child = child;
+		    call(child, off, this.instructions.entries[id]);
+		}
+		return;
+		
+	    default:
+		this.result = atom(pc, off);
+		return;
+	}
+    }
+    
+    
+    /**
+     * Starts parsing a bounded repeat, repetition by repetition
+     * 
+     * @param  node  The node in which the repeat is parsed
+     * @param  off   The offset in the data
+     * @param  pc    The address of the repeat's instruction
+     */
+    private void enterRepeat(final ParseTree node, final int off, final int pc)
+    {
+	final int min = this.code[pc + 1];
+	final Frame frame = push(min > 0 ? REPEAT_MIN : REPEAT, node, off, pc);
+	frame.min = min;
+	frame.max = this.code[pc + 2];
+	frame.sub = this.code[pc + 3];
+	if (min > 0)
+	    call(node, off, frame.sub);
+	else if (node.paniced)
+	    ret(off);
+	else
+	    repeat(frame);
+    }
+    
+    
+    /**
+     * Starts parsing an alternation, trying every alternative
+     * 
+     * @param  node      The node in which the alternation is parsed
+     * @param  off       The offset in the data
+     * @param  elements  The address of the number of alternatives in the alternation's instruction
+     */
+    private void enterAlternation(final ParseTree node, final int off, final int elements)
+    {
+	push(ALTERNATION, node, off, elements);
+	if (this.code[elements] == 0)
+	    ret(off);
+	else
+	    call(node, off, this.code[elements + 1]);
+    }
+    
+    
+    /**
+     * Continues parsing the grammar element of a frame, after one of its subelements has been parsed
+     * 
+     * @param  frame  The frame
+     * @param  r      The result of the subelement
+     */
+    private void resume(final Frame frame, final int r)
+    {
+	final boolean passed = r >= 0;
+	switch (frame.kind)
+	{
+	    case DEFINITION:
+		{
+		    final ParseTree child = frame.child;
+		    final int read = finish(child, frame.off, r, frame.captureMark);
+		    if (frame.node.context.memo != null)
+			frame.node.context.memo.put(child.id, frame.off, read < 0 ? PackratMemo.FAILED : child);
+		    ret(read < 0 ? -1 : adopt(frame.node, child));
+		}
+		return;
+		
+	    case STORE:
+		if (passed == false)
+		{
+		    ret(-1);
+		    return;
+		}
+		frame.node.context.captureStack.complete(frame.index, r);
+		ret(r);
+		return;
+		
+	    case REPEAT_MIN:
+		if (passed == false)
+		{
+		    ret(-1);
+		    return;
+		}
+		frame.offset = r;
+		if (++(frame.index) < frame.min)
+		    call(frame.node, frame.offset, frame.sub);
+		else if (frame.node.paniced)
+		    ret(frame.offset);
+		else
+		{
+		    frame.kind = REPEAT;
+		    repeat(frame);
+		}
+		return;
+		
+	    case REPEAT:
+		if (passed == false)
+		{
+		    ret(frame.offset);
+		    return;
+		}
+		if (frame.node.paniced || ((r == frame.offset) && (frame.max < 0)))
+		{
+		    ret(r);
+		    return;
+		}
+		frame.offset = r;
+		frame.index++;
+		repeat(frame);
+		return;
+		
+	    case JUXTAPOSITION:
+		if (passed == false)
+		{
+		    ret(-1);
+		    return;
+		}
+		frame.offset = r;
+		if (frame.node.paniced || (++(frame.index) == this.code[frame.pc + 1]))
+		    ret(frame.offset);
+		else
+		    call(frame.node, frame.offset, this.code[frame.pc + 2 + frame.index]);
+		return;
+		
+	    case ALTERNATION:
+		if (passed)
+		    ret(r);
+		else if (++(frame.index) == this.code[frame.pc])
+		    ret(-1);
+		else
+		    call(frame.node, frame.off, this.code[frame.pc + 1 + frame.index]);
+		return;
+		
+	    default: // DISPATCH and DISPATCH_VIABLE
+		if (passed)
+		    ret(r);
+		else
+		    dispatch(frame);
+		return;
+	}
+    }
+    
+    
+    /**
+     * Parses the next repetition of a bounded repeat, after the minimum number of repetitions
+     * 
+     * @param  frame  The bounded repeat's frame
+     */
+    private void repeat(final Frame frame)
+    {
+	if (frame.index != frame.max) //infinity is -1, so 'index < max' would fail
+	    call(frame.node, frame.offset, frame.sub);
+	else
+	    ret(frame.offset);
+    }
+    
+    
+    /**
+     * Tries the next viable alternative of a dispatched alternation
+     * 
+     * @param  frame  The alternation's frame
+     */
+    private void dispatch(final Frame frame)
+    {
+	final int[] code = this.code;
+	final int alternatives = frame.pc + 3;
+	int i = frame.index;
+	
+	if (frame.kind == DISPATCH)
+	{
+	    if (++i == frame.candidates.length)
+	    {
+		ret(-1);
+		return;
+	    }
+	    frame.index = i;
+	    call(frame.node, frame.off, code[alternatives + frame.candidates[i]]);
+	    return;
+	}
+	
+	for (final int n = code[frame.pc + 2]; ++i < n;)
+	    if (frame.alternation.viable(i, frame.next))
+	    {
+		frame.index = i;
+		call(frame.node, frame.off, code[alternatives + i]);
+		return;
+	    }
+	ret(-1);
+    }
+    
+    
+    /**
+     * Parses an atomary grammar element, as {@link Parser#passes(CodePointText, int, GrammarElement)}
+     * 
+     * @param   pc   The address of the grammar element's instruction
+     * @param   off  The offset in the data
+     * @return       The end of the atom, <code>-1</code> if it did not pass
+     */
+    private int atom(final int pc, final int off)
+    {
+	final CodePointText data = this.data;
+	final int opcode = this.code[pc];
+	if (opcode == Instructions.EMPTY)
+	    return off;
+	
+	final int operand = this.code[pc + 1];
+	final int read;
+	switch (opcode)
+	{
+	    case Instructions.STRING:
+		read = Parser.passesString(data, off, this.instructions.strings[operand]);
+		break;
+		
+	    case Instructions.WORD:
+		read = Parser.passesWord(data, off, this.instructions.strings[operand]);
+		break;
+		
+	    case Instructions.PARTIAL:
+		read = Parser.passesPartial(data, off, this.instructions.strings[operand]);
+		break;
+		
+	    case Instructions.TRIE:
+		read = this.instructions.tries[operand].passes(data, off);
+		break;
+		
+	    case Instructions.SET:
+		return (off < data.length()) && this.instructions.sets[operand].contains(data.get(off)) ? off + 1 : -1;
+		
+	    case Instructions.CHECK:
+		read = Parser.passesCheck(data, off, this.instructions.checks[operand]);
+		break;
+		
+	    default:
+		assert false : "Unrecognised instruction used!";
+		return -1;
+	}
+	
+	return read < 0 ? -1 : (off + read);
+    }
+    
+    
+    /**
+     * Parses a bounded repeat of an atom that always reads at least one character when it passes,
+     * as {@link ParseTree#scan(CodePointText, int, GrammarElement, int, int)}
+     * 
+     * @param   node  The node in which the repeat is parsed
+     * @param   off   The offset in the data
+     * @param   pc    The address of the repeated atom's instruction
+     * @param   min   The minimum number of repetitions
+     * @param   max   The maximum number of repetitions, <code>-1</code> for infinity
+     * @return        The end of the repetitions, <code>-1</code> if it did not pass
+     */
+    private int scan(final ParseTree node, final int off, final int pc, final int min, final int max)
+    {
+	if (this.code[pc] == Instructions.SET)
+	{
+	    final int n = this.data.length();
+	    final int end = (max < 0) || (max >= n - off) ? n : (off + max);
+	    final int rc = this.data.span(this.instructions.sets[this.code[pc + 1]], off, end);
+	    
+	    if (rc - off < min)
+		return -1;
+	    return node.paniced ? (off + min) : rc;
+	}
+	
+	int offset = off;
+	for (int i = 0; i != max; i++) //infinity is -1, so 'i < max' would fail
+	{
+	    if ((i == min) && node.paniced)
+		break;
+	    
+	    final int r = atom(pc, offset);
+	    if (r < 0)
+		return i < min ? -1 : offset;
+	    if (r == offset)
+		break;
+	    offset = r;
+	}
+	return offset;
+    }
+    
+    
+    /**
+     * Completes a node after its grammar has been parsed, as done at the end of {@link ParseTree#parse(CodePointText, int)}
+     * 
+     * @param   node  The node
+     * @param   off   The offset the node was parsed at
+     * @param   r     The result of parsing the node's grammar
+     * @param   mark  The number of captures on the named capture stack when the node was entered
+     * @return        The amount of read data
+     */
+    private static int finish(final ParseTree node, final int off, final int r, final int mark)
+    {
+	final CaptureStack captureStack = node.context.captureStack;
+	node.storage = r < 0 ? null : captureStack.storage(mark, node.grammar.slotNames);
+	captureStack.truncate(mark);
+	
+	node.intervalStart = off;
+	node.intervalEnd = r < 0 ? off : r;
+	
+	node.paniced |= node.definition.panics.isEmpty() == false;
+	node.compile |= node.definition.compiles != null;
+	
+	return r;
+    }
+    
+    
+    /**
+     * Adds a parsed child node to its parent
+     * 
+     * @param   node   The parent node
+     * @param   child  The child node
+     * @return         The result of the definition reference
+     */
+    private static int adopt(final ParseTree node, final ParseTree child)
+    {
+	node.paniced |= child.paniced;
+	node.compile |= child.compile;
+	node.children.add(child);
+	return child.intervalEnd;
+    }
+    
+    
+    /**
+     * Requests the parsing of a grammar element
+     * 
+     * @param  node  The node in which the element is parsed
+     * @param  off   The offset in the data
+     * @param  pc    The address of the grammar element's instruction
+     */
+    private void call(final ParseTree node, final int off, final int pc)
+    {
+	this.calling = true;
+	this.callNode = node;
+	this.callOff = off;
+	this.callPc = pc;
+    }
+    
+    
+    /**
+     * Pops the top frame and returns a result to the frame under it, undoing the frame's
+     * additions to its node's children and the named capture stack if the element did not pass
+     * 
+     * @param  r  The result
+     */
+    private void ret(final int r)
+    {
+	final Frame frame = this.stack[this.sp - 1];
+	if (r < 0)
+	{
+	    final ArrayList<ParseTree> children = frame.node.children;
+	    for (int i = children.size() - 1; i >= frame.mark; i--)
+		children.remove(i);
+	    frame.node.context.captureStack.truncate(frame.captureMark);
+	}
+	pop(frame);
+	this.result = r;
+    }
+    
+    
+    /**
+     * Pushes a frame
+     * 
+     * @param   kind  The kind of frame
+     * @param   node  The node in which the frame's element is parsed
+     * @param   off   The offset of the frame's element in the data
+     * @param   pc    The address of the frame's instruction, or of its operands
+     * @return        The frame
+     */
+    private Frame push(final byte kind, final ParseTree node, final int off, final int pc)
+    {
+	if (this.sp == this.stack.length)
+	    this.stack = Arrays.copyOf(this.stack, this.sp << 1);
+	
+	Frame frame = this.stack[this.sp];
+	if (frame == null)
+	    this.stack[this.sp] = frame = new Frame();
+	this.sp++;
+	
+	frame.kind = kind;
+	frame.node = node;
+	frame.pc = pc;
+	frame.off = frame.offset = off;
+	frame.mark = node.children.size();
+	frame.captureMark = node.context.captureStack.size();
+	frame.index = 0;
+	return frame;
+    }
+    
+    
+    /**
+     * Pops the top frame and clears its references
+     * 
+     * @param  frame  The top frame
+     */
+    private void pop(final Frame frame)
+    {
+	this.sp--;
+	frame.node = frame.child = null;
+	frame.alternation = null;
+	frame.candidates = null;
+    }
+    
+    
+    
+    /**
+     * Stack frame
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    private static class Frame
+    {
+	//Has default constructor
+	
+	
+	
+	/**
+	 * The kind of frame
+	 */
+	byte kind;
+	
+	/**
+	 * The node in which the frame's element is parsed
+	 */
+	ParseTree node;
+	
+	/**
+	 * The child node, for definition and root frames
+	 */
+	ParseTree child;
+	
+	/**
+	 * The address of the frame's instruction, for alternations the address of the number of alternatives
+	 */
+	int pc;
+	
+	/**
+	 * The offset of the frame's element in the data
+	 */
+	int off;
+	
+	/**
+	 * The current offset in the data
+	 */
+	int offset;
+	
+	/**
+	 * The number of children of the node when the frame was pushed
+	 */
+	int mark;
+	
+	/**
+	 * The number of captures on the node's named capture stack when the frame was pushed
+	 */
+	int captureMark;
+	
+	/**
+	 * The index of the current subelement, repetition or alternative, for stores the index of the capture
+	 */
+	int index;
+	
+	/**
+	 * The address of the repeated element's instruction
+	 */
+	int sub;
+	
+	/**
+	 * The minimum number of repetitions
+	 */
+	int min;
+	
+	/**
+	 * The maximum number of repetitions, <code>-1</code> for infinity
+	 */
+	int max;
+	
+	/**
+	 * The dispatched alternation
+	 */
+	DispatchedAlternation alternation;
+	
+	/**
+	 * The candidate alternatives of a dispatched alternation
+	 */
+	int[] candidates;
+	
+	/**
+	 * The next character, for dispatched alternations
+	 */
+	int next;
+    }
+    
+}
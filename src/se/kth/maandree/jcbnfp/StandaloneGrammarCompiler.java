@@ -0,0 +1,812 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+import se.kth.maandree.jcbnfp.elements.*;
+
+import java.util.*;
+
+
+/**
+ * <p>Generates the source of a standalone parser for a grammar</p>
+ * <p>
+ *   The generated class has no dependencies on this library, it only uses the standard library,
+ *   and it can thus be shipped without it and compiled ahead of time with the rest of a program.
+ *   It is generated as {@link GrammarCompiler} generates its parsers, but the grammar elements
+ *   that {@link CompiledParser} looks up at runtime are instead generated as code and constants,
+ *   and the runtime support is included in the generated class.
+ * </p>
+ * <p>
+ *   The parser builds a tree of nodes of the nested class <code>Node</code>, which has the same
+ *   public fields as {@link ParseTree}, except that <code>definition</code> is the name of the
+ *   definition, and it spans the same data as the tree built by {@link Parser}. Packrat parsing
+ *   is not supported, and words are always delimited by the default rules of {@link JCBNFCheck#W}.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class StandaloneGrammarCompiler extends GrammarCompiler
+{
+    /**
+     * Constructor
+     * 
+     * @param  grammar      The compiled grammar
+     * @param  className    The name of the generated class
+     * @param  packageName  The package of the generated class, <code>null</code> for the default package
+     */
+    StandaloneGrammarCompiler(final Grammar grammar, final String className, final String packageName)
+    {
+	super(grammar);
+	this.className = className;
+	this.packageName = packageName;
+    }
+    
+    
+    
+    /**
+     * The name of the generated class
+     */
+    private final String className;
+    
+    /**
+     * The package of the generated class, <code>null</code> for the default package
+     */
+    private final String packageName;
+    
+    /**
+     * Map from dispatched alternations to the number of the constants that hold their dispatch tables
+     */
+    private final IdentityHashMap<DispatchedAlternation, Integer> tables = new IdentityHashMap<DispatchedAlternation, Integer>();
+    
+    
+    
+    /**
+     * Generates the source of a standalone parser for a grammar
+     * 
+     * @param   grammar      The compiled grammar
+     * @param   className    The name of the generated class
+     * @param   packageName  The package of the generated class, <code>null</code> for the default package
+     * @return               The source of the generated class
+     */
+    static String generate(final Grammar grammar, final String className, final String packageName)
+    {
+	return (new StandaloneGrammarCompiler(grammar, className, packageName)).generate();
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String assemble(final String dispatch)
+    {
+	final int n = this.grammar.size();
+	final StringBuilder names = new StringBuilder();
+	final StringBuilder panics = new StringBuilder();
+	final StringBuilder compiles = new StringBuilder();
+	for (int id = 0; id < n; id++)
+	{
+	    final Definition definition = this.grammar.getDefinition(id);
+	    names.append(id == 0 ? "" : ", ").append(literal(definition.name));
+	    panics.append(id == 0 ? "" : ", ").append(definition.panics.isEmpty() == false);
+	    compiles.append(id == 0 ? "" : ", ").append(definition.compiles != null);
+	}
+	final StringBuilder captures = new StringBuilder();
+	for (final String name : this.grammar.slotNames)
+	    captures.append(captures.length() == 0 ? "" : ", ").append(literal(name));
+	
+	final StringBuilder source = new StringBuilder();
+	if (this.packageName != null)
+	    source.append("package " + this.packageName + ";\n\n");
+	source.append("import java.util.*;\n\n\n");
+	source.append("/**\n");
+	source.append(" * Parser generated by jcbnfp\n");
+	source.append(" */\n");
+	source.append("public final class " + this.className + "\n");
+	source.append("{\n");
+	source.append("    /**\n");
+	source.append("     * The names of the definitions, by id, in sorted order\n");
+	source.append("     */\n");
+	source.append("    public static final String[] DEFINITIONS = { " + names + " };\n\n");
+	source.append("    private static final boolean[] PANICS = { " + panics + " };\n");
+	source.append("    private static final boolean[] COMPILES = { " + compiles + " };\n");
+	source.append("    private static final String[] CAPTURES = { " + captures + " };\n\n");
+	source.append(this.fields);
+	source.append("\n");
+	source.append("    private " + this.className + "()\n");
+	source.append("    {\n");
+	source.append("        //Has only static methods\n");
+	source.append("    }\n\n");
+	source.append(RUNTIME_API);
+	source.append("    private static int definition(final int id, final Node node, final int[] data, final int off)\n");
+	source.append("    {\n");
+	source.append("        switch (id)\n");
+	source.append("        {\n");
+	source.append(dispatch);
+	source.append("            default:  return -1;\n");
+	source.append("        }\n");
+	source.append("    }\n\n");
+	source.append(this.methods);
+	source.append(RUNTIME_SUPPORT);
+	source.append("}\n");
+	return source.toString();
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String modifiers()
+    {
+	return "private static";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String nodeType()
+    {
+	return "Node";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String textType()
+    {
+	return "int[]";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String step(final String off)
+    {
+	return ""; // the generated parser has no limits
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String length()
+    {
+	return "data.length";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String at(final String index)
+    {
+	return "data[" + index + "]";
+    }
+    
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String atom(final GrammarElement element, final String off)
+    {
+	if (element instanceof JCBNFCharacters)
+	    return characters((JCBNFCharacters)element, off);
+	if (element instanceof JCBNFWordString)
+	    return "word(data, " + off + ", " + constant(((JCBNFWordString)element).string) + ")";
+	if (element instanceof JCBNFPartialString)
+	    return "partial(data, " + off + ", " + constant(((JCBNFPartialString)element).string) + ")";
+	if (element instanceof JCBNFCheck)
+	    return "(check('" + ((JCBNFCheck)element).name() + "', data, " + off + ") ? " + off + " : -1)";
+	
+	final JCBNFStringTrie trie = (JCBNFStringTrie)element;
+	final String name = newMethod("e");
+	
+	final StringBuilder m = new StringBuilder();
+	m.append(declaration(name, "final int[] data, final int off"));
+	m.append("    {\n");
+	m.append("        int r;\n");
+	for (final GrammarElement alternative : trie.alternatives)
+	{
+	    m.append("        if ((r = " + expr(alternative, "off") + ") >= 0)\n");
+	    m.append("            return r;\n");
+	}
+	m.append("        return -1;\n");
+	m.append("    }\n\n");
+	this.methods.append(m);
+	
+	return name + "(data, " + off + ")";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String scan(final GrammarElement atom, final String off, final int min, final int max)
+    {
+	if (atom instanceof JCBNFCharacters)
+	    return "span(n, " + set((JCBNFCharacters)atom) + ", data, " + off + ", " + min + ", " + max + ")";
+	
+	final String name = newMethod("e");
+	
+	final StringBuilder m = new StringBuilder();
+	m.append(declaration(name, parameters()));
+	m.append("    {\n");
+	m.append("        int o = off;\n");
+	m.append("        for (int i = 0; i != " + max + "; i++)\n");
+	m.append("        {\n");
+	m.append("            if ((i == " + min + ") && n.paniced)\n");
+	m.append("                break;\n");
+	m.append("            final int r = " + expr(atom, "o") + ";\n");
+	m.append("            if (r < 0)\n");
+	m.append("                return i < " + min + " ? -1 : o;\n");
+	m.append("            if (r == o)\n");
+	m.append("                break;\n");
+	m.append("            o = r;\n");
+	m.append("        }\n");
+	m.append("        return o;\n");
+	m.append("    }\n\n");
+	this.methods.append(m);
+	
+	return name + "(n, data, " + off + ")";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String backtrack(final JCBNFBacktrack element, final String off)
+    {
+	if (element.replaceeString == null)
+	    return "backtrack(n, " + element.slot + ", data, " + off + ")";
+	return "replace(n, " + element.slot + ", data, " + off + ", " + constant(element.replaceeString) + ", "
+	       + constant(element.replacerString) + ", " + constant(element.replaceeBorders) + ")";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void declareSet(final String field, final JCBNFCharacters element)
+    {
+	this.fields.append("    private static final Set " + field + " = " + construct(element.toCodePointSet()) + ";\n");
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String callBody(final int id)
+    {
+	final StringBuilder m = new StringBuilder();
+	m.append("        final Node child = new Node(n, " + id + ");\n");
+	m.append("        if (d" + id + "(child, data, off) < 0)\n");
+	m.append("            return -1;\n");
+	m.append("        return adopt(n, child);\n");
+	return m.toString();
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String candidates(final DispatchedAlternation alternation)
+    {
+	final int table = table(alternation);
+	return "(next < 0 ? z" + table + " : (next >>> 8) == 0 ? x" + table + "[next] : null)";
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String viable(final DispatchedAlternation alternation, final String alternative)
+    {
+	final int table = table(alternation);
+	return "u" + table + "[" + alternative + "] || f" + table + "[" + alternative + "].contains(next)";
+    }
+    
+    
+    
+    /**
+     * Gets the number of the constants that hold the dispatch tables of an alternation, and generates them if needed:
+     * <code>x</code> for the alternatives that can pass on each character below 256, <code>z</code> for those that
+     * can pass at the end of the data, and <code>f</code> and <code>u</code> for the FIRST sets and nullability
+     * of the alternatives
+     * 
+     * @param   alternation  The alternation
+     * @return               The number of the constants
+     */
+    private int table(final DispatchedAlternation alternation)
+    {
+	final Integer existing = this.tables.get(alternation);
+	if (existing != null)
+	    return existing.intValue();
+	
+	final int table = this.tables.size();
+	this.tables.put(alternation, Integer.valueOf(table));
+	
+	final ArrayList<int[]> lists = new ArrayList<int[]>();
+	final StringBuilder index = new StringBuilder();
+	for (int c = 0; c < 256; c++)
+	{
+	    final int[] list = alternation.candidates(c);
+	    int i = 0;
+	    for (final int n = lists.size(); i < n; i++)
+		if (lists.get(i) == list) // identical lists are shared
+		    break;
+	    if (i == lists.size())
+		lists.add(list);
+	    index.append((char)i);
+	}
+	
+	final StringBuilder x = new StringBuilder();
+	for (final int[] list : lists)
+	    x.append(x.length() == 0 ? "" : ", ").append(array(list));
+	
+	final StringBuilder f = new StringBuilder();
+	final StringBuilder u = new StringBuilder();
+	for (final GrammarElement alternative : alternation.alternatives)
+	{
+	    f.append(f.length() == 0 ? "" : ", ").append(construct(this.grammar.firstSets.first(alternative)));
+	    u.append(u.length() == 0 ? "" : ", ").append(this.grammar.firstSets.nullable(alternative));
+	}
+	
+	this.fields.append("    private static final int[][] x" + table + " = table(" + literal(index.toString()) + ", new int[][] { " + x + " });\n");
+	this.fields.append("    private static final int[] z" + table + " = " + array(alternation.atEnd) + ";\n");
+	this.fields.append("    private static final Set[] f" + table + " = { " + f + " };\n");
+	this.fields.append("    private static final boolean[] u" + table + " = { " + u + " };\n");
+	return table;
+    }
+    
+    
+    /**
+     * Generates an expression that constructs a set of characters
+     * 
+     * @param   set  The set of characters
+     * @return       The expression
+     */
+    private static String construct(final CodePointSet set)
+    {
+	return "new Set(" + array(set.getRanges()) + ")";
+    }
+    
+    
+    /**
+     * Generates an array initialiser
+     * 
+     * @param   array  The elements of the array
+     * @return         The array initialiser, as an expression
+     */
+    private static String array(final int[] array)
+    {
+	final StringBuilder rc = new StringBuilder("new int[] {");
+	for (int i = 0, n = array.length; i < n; i++)
+	    rc.append(i == 0 ? " " : ", ").append(array[i]);
+	return rc.append(" }").toString();
+    }
+    
+    
+    /**
+     * Generates a string literal
+     * 
+     * @param   string  The string
+     * @return          The string literal
+     */
+    private static String literal(final String string)
+    {
+	final StringBuilder rc = new StringBuilder("\"");
+	for (int i = 0, n = string.length(); i < n; i++)
+	{
+	    final char c = string.charAt(i);
+	    if      (c == '"')   rc.append("\\\"");
+	    else if (c == '\\')  rc.append("\\\\");
+	    else if (c == '\n')  rc.append("\\n");
+	    else if (c == '\r')  rc.append("\\r");
+	    else if ((' ' <= c) && (c <= '~'))
+		rc.append(c);
+	    else
+	    {
+		final String hex = "000" + Integer.toHexString(c);
+		rc.append("\\u").append(hex.substring(hex.length() - 4));
+	    }
+	}
+	return rc.append("\"").toString();
+    }
+    
+    
+    
+    /**
+     * The public methods of the generated class
+     */
+    private static final String RUNTIME_API =
+	"    /**\n" +
+	"     * Parses a text\n" +
+	"     * \n" +
+	"     * @param   text  The text\n" +
+	"     * @param   main  The name of the definition to parse the text as\n" +
+	"     * @return        The tree with the result, <code>null</code> if the grammar does not match\n" +
+	"     * \n" +
+	"     * @throws  IllegalArgumentException  If there is no definition with the specified name\n" +
+	"     */\n" +
+	"    public static Node parse(final String text, final String main)\n" +
+	"    {\n" +
+	"        final int[] data = new int[text.codePointCount(0, text.length())];\n" +
+	"        for (int i = 0, j = 0, n = text.length(); i < n; j++)\n" +
+	"            i += Character.charCount(data[j] = text.codePointAt(i));\n" +
+	"        return parse(data, main);\n" +
+	"    }\n\n" +
+	"    /**\n" +
+	"     * Parses a text\n" +
+	"     * \n" +
+	"     * @param   data  The characters of the text\n" +
+	"     * @param   main  The name of the definition to parse the text as\n" +
+	"     * @return        The tree with the result, <code>null</code> if the grammar does not match\n" +
+	"     * \n" +
+	"     * @throws  IllegalArgumentException  If there is no definition with the specified name\n" +
+	"     */\n" +
+	"    public static Node parse(final int[] data, final String main)\n" +
+	"    {\n" +
+	"        final int id = Arrays.binarySearch(DEFINITIONS, main);\n" +
+	"        if (id < 0)\n" +
+	"            throw new IllegalArgumentException(\"No such definition: \" + main);\n" +
+	"        final Node tree = new Node(null, id);\n" +
+	"        return definition(id, tree, data, 0) < 0 ? null : tree;\n" +
+	"    }\n\n";
+    
+    /**
+     * The runtime support of the generated class
+     */
+    private static final String RUNTIME_SUPPORT =
+	"    /**\n" +
+	"     * Node in the tree describing parsed data\n" +
+	"     */\n" +
+	"    public static final class Node\n" +
+	"    {\n" +
+	"        Node(final Node parent, final int id)\n" +
+	"        {\n" +
+	"            this.parent = parent;\n" +
+	"            this.id = id;\n" +
+	"            this.definition = DEFINITIONS[id];\n" +
+	"            this.captures = parent == null ? new Captures() : parent.captures;\n" +
+	"        }\n\n" +
+	"        /**\n" +
+	"         * The parent node, <code>null</code> if none\n" +
+	"         */\n" +
+	"        public final Node parent;\n\n" +
+	"        /**\n" +
+	"         * The id of the node's definition, its index in {@link #DEFINITIONS}\n" +
+	"         */\n" +
+	"        public final int id;\n\n" +
+	"        /**\n" +
+	"         * The name of the node's definition\n" +
+	"         */\n" +
+	"        public final String definition;\n\n" +
+	"        /**\n" +
+	"         * The node's children\n" +
+	"         */\n" +
+	"        public final ArrayList<Node> children = new ArrayList<Node>();\n\n" +
+	"        /**\n" +
+	"         * The subtree's named capture storage, may be <code>null</code>\n" +
+	"         */\n" +
+	"        public HashMap<String, ArrayDeque<int[]>> storage = null;\n\n" +
+	"        /**\n" +
+	"         * The beginning (inclusive) of the data that this node spans\n" +
+	"         */\n" +
+	"        public int intervalStart;\n\n" +
+	"        /**\n" +
+	"         * The end (exclusive) of the data that this node spans\n" +
+	"         */\n" +
+	"        public int intervalEnd;\n\n" +
+	"        /**\n" +
+	"         * Whether a panic is thrown\n" +
+	"         */\n" +
+	"        public boolean paniced = false;\n\n" +
+	"        /**\n" +
+	"         * Whether this node or a child node is has a compile statement\n" +
+	"         */\n" +
+	"        public boolean compile = false;\n\n" +
+	"        final Captures captures;\n" +
+	"    }\n\n" +
+	"    private static final class Set\n" +
+	"    {\n" +
+	"        Set(final int[] ranges)\n" +
+	"        {\n" +
+	"            int top = -1, astral = 0;\n" +
+	"            for (int i = 0; i < ranges.length; i += 2)\n" +
+	"            {\n" +
+	"                if ((ranges[i + 1] >= 0) && (ranges[i] <= 0xFFFF))\n" +
+	"                    top = Math.min(ranges[i + 1], 0xFFFF);\n" +
+	"                if ((ranges[i] < 0) || (ranges[i + 1] > 0xFFFF))\n" +
+	"                    astral += 2;\n" +
+	"            }\n" +
+	"            this.bmp = new long[(top >> 6) + 1];\n" +
+	"            this.astral = new int[astral];\n" +
+	"            for (int i = 0, j = 0; i < ranges.length; i += 2)\n" +
+	"            {\n" +
+	"                for (int c = Math.max(ranges[i], 0), e = Math.min(ranges[i + 1], 0xFFFF); c <= e; c++)\n" +
+	"                    this.bmp[c >> 6] |= 1L << c;\n" +
+	"                if ((ranges[i] < 0) || (ranges[i + 1] > 0xFFFF))\n" +
+	"                {\n" +
+	"                    this.astral[j++] = ranges[i];\n" +
+	"                    this.astral[j++] = ranges[i + 1];\n" +
+	"                }\n" +
+	"            }\n" +
+	"        }\n\n" +
+	"        private final long[] bmp;\n" +
+	"        private final int[] astral;\n\n" +
+	"        boolean contains(final int c)\n" +
+	"        {\n" +
+	"            if ((c >>> 16) == 0)\n" +
+	"                return ((c >> 6) < this.bmp.length) && (((this.bmp[c >> 6] >>> c) & 1L) != 0);\n" +
+	"            int low = 0, high = (this.astral.length >> 1) - 1;\n" +
+	"            while (low <= high)\n" +
+	"            {\n" +
+	"                final int mid = (low + high) >>> 1;\n" +
+	"                if      (c < this.astral[mid << 1])        high = mid - 1;\n" +
+	"                else if (c > this.astral[(mid << 1) | 1])  low = mid + 1;\n" +
+	"                else\n" +
+	"                    return true;\n" +
+	"            }\n" +
+	"            return false;\n" +
+	"        }\n" +
+	"    }\n\n" +
+	"    private static final class Captures\n" +
+	"    {\n" +
+	"        Captures()\n" +
+	"        {\n" +
+	"            Arrays.fill(this.latest, -1);\n" +
+	"        }\n\n" +
+	"        int[] entries = new int[64];\n" +
+	"        int size = 0;\n" +
+	"        final int[] latest = new int[CAPTURES.length];\n" +
+	"    }\n\n" +
+	"    private static int close(final Node node, final int off, final int read, final int stored)\n" +
+	"    {\n" +
+	"        if (stored >= 0)\n" +
+	"        {\n" +
+	"            node.storage = read < 0 ? null : storage(node.captures, stored);\n" +
+	"            discard(node, stored);\n" +
+	"        }\n" +
+	"        node.intervalStart = off;\n" +
+	"        node.intervalEnd = read < 0 ? off : read;\n" +
+	"        node.paniced |= PANICS[node.id];\n" +
+	"        node.compile |= COMPILES[node.id];\n" +
+	"        return read;\n" +
+	"    }\n\n" +
+	"    private static int adopt(final Node parent, final Node child)\n" +
+	"    {\n" +
+	"        parent.paniced |= child.paniced;\n" +
+	"        parent.compile |= child.compile;\n" +
+	"        parent.children.add(child);\n" +
+	"        return child.intervalEnd;\n" +
+	"    }\n\n" +
+	"    private static void truncate(final Node node, final int mark)\n" +
+	"    {\n" +
+	"        final ArrayList<Node> children = node.children;\n" +
+	"        for (int i = children.size() - 1; i >= mark; i--)\n" +
+	"            children.remove(i);\n" +
+	"    }\n\n" +
+	"    private static int captures(final Node node)\n" +
+	"    {\n" +
+	"        return node.captures.size;\n" +
+	"    }\n\n" +
+	"    private static int capture(final Node node, final int slot, final int start)\n" +
+	"    {\n" +
+	"        final Captures captures = node.captures;\n" +
+	"        if (captures.size << 2 == captures.entries.length)\n" +
+	"            captures.entries = Arrays.copyOf(captures.entries, captures.entries.length << 1);\n" +
+	"        final int i = captures.size << 2;\n" +
+	"        captures.entries[i] = slot;\n" +
+	"        captures.entries[i + 1] = start;\n" +
+	"        captures.entries[i + 2] = -1;\n" +
+	"        captures.entries[i + 3] = captures.latest[slot];\n" +
+	"        captures.latest[slot] = captures.size;\n" +
+	"        return captures.size++;\n" +
+	"    }\n\n" +
+	"    private static void complete(final Node node, final int capture, final int end)\n" +
+	"    {\n" +
+	"        node.captures.entries[(capture << 2) + 2] = end;\n" +
+	"    }\n\n" +
+	"    private static void discard(final Node node, final int mark)\n" +
+	"    {\n" +
+	"        final Captures captures = node.captures;\n" +
+	"        for (int i = captures.size - 1; i >= mark; i--)\n" +
+	"            captures.latest[captures.entries[i << 2]] = captures.entries[(i << 2) + 3];\n" +
+	"        captures.size = mark;\n" +
+	"    }\n\n" +
+	"    private static HashMap<String, ArrayDeque<int[]>> storage(final Captures captures, final int mark)\n" +
+	"    {\n" +
+	"        if (captures.size == mark)\n" +
+	"            return null;\n" +
+	"        final HashMap<String, ArrayDeque<int[]>> rc = new HashMap<String, ArrayDeque<int[]>>();\n" +
+	"        for (int i = mark << 2, n = captures.size << 2; i < n; i += 4)\n" +
+	"        {\n" +
+	"            ArrayDeque<int[]> list = rc.get(CAPTURES[captures.entries[i]]);\n" +
+	"            if (list == null)\n" +
+	"                rc.put(CAPTURES[captures.entries[i]], list = new ArrayDeque<int[]>());\n" +
+	"            list.offerLast(new int[] { captures.entries[i + 1], captures.entries[i + 2] });\n" +
+	"        }\n" +
+	"        return rc;\n" +
+	"    }\n\n" +
+	"    private static int find(final Node node, final int slot)\n" +
+	"    {\n" +
+	"        final int[] entries = node.captures.entries;\n" +
+	"        int capture = node.captures.latest[slot];\n" +
+	"        while ((capture >= 0) && (entries[(capture << 2) + 2] < 0))\n" +
+	"            capture = entries[(capture << 2) + 3];\n" +
+	"        return capture;\n" +
+	"    }\n\n" +
+	"    private static int backtrack(final Node node, final int slot, final int[] data, final int off)\n" +
+	"    {\n" +
+	"        final int capture = find(node, slot);\n" +
+	"        if (capture < 0)\n" +
+	"            return -1;\n" +
+	"        final int start = node.captures.entries[(capture << 2) + 1];\n" +
+	"        final int n = node.captures.entries[(capture << 2) + 2] - start;\n" +
+	"        if (data.length - off < n)\n" +
+	"            return -1;\n" +
+	"        for (int i = 0; i < n; i++)\n" +
+	"            if (data[i + off] != data[i + start])\n" +
+	"                return -1;\n" +
+	"        return off + n;\n" +
+	"    }\n\n" +
+	"    private static int replace(final Node node, final int slot, final int[] data, final int off,\n" +
+	"                               final int[] replacee, final int[] replacer, final int[] borders)\n" +
+	"    {\n" +
+	"        final int m = replacee.length;\n" +
+	"        if (m == 0)\n" +
+	"            return backtrack(node, slot, data, off);\n" +
+	"        final int capture = find(node, slot);\n" +
+	"        if (capture < 0)\n" +
+	"            return -1;\n" +
+	"        final int start = node.captures.entries[(capture << 2) + 1];\n" +
+	"        final int end = node.captures.entries[(capture << 2) + 2];\n" +
+	"        int i = off, q = 0;\n" +
+	"        for (int j = start; j < end; j++)\n" +
+	"        {\n" +
+	"            final int c = data[j];\n" +
+	"            while ((q > 0) && (replacee[q] != c))\n" +
+	"            {\n" +
+	"                final int b = borders[q - 1];\n" +
+	"                if (prefix(data, i, replacee, q - b) == false)\n" +
+	"                    return -1;\n" +
+	"                i += q - b;\n" +
+	"                q = b;\n" +
+	"            }\n" +
+	"            if (replacee[q] != c)\n" +
+	"            {\n" +
+	"                if ((i >= data.length) || (data[i] != c))\n" +
+	"                    return -1;\n" +
+	"                i++;\n" +
+	"            }\n" +
+	"            else if (++q == m)\n" +
+	"            {\n" +
+	"                if (prefix(data, i, replacer, replacer.length) == false)\n" +
+	"                    return -1;\n" +
+	"                i += replacer.length;\n" +
+	"                q = 0;\n" +
+	"            }\n" +
+	"        }\n" +
+	"        return prefix(data, i, replacee, q) ? i + q : -1;\n" +
+	"    }\n\n" +
+	"    private static boolean prefix(final int[] data, final int off, final int[] string, final int count)\n" +
+	"    {\n" +
+	"        if (data.length - off < count)\n" +
+	"            return false;\n" +
+	"        for (int i = 0; i < count; i++)\n" +
+	"            if (data[i + off] != string[i])\n" +
+	"                return false;\n" +
+	"        return true;\n" +
+	"    }\n\n" +
+	"    private static int span(final Node node, final Set set, final int[] data, final int off, final int min, final int max)\n" +
+	"    {\n" +
+	"        final int n = data.length;\n" +
+	"        final int end = (max < 0) || (max >= n - off) ? n : (off + max);\n" +
+	"        int i = off;\n" +
+	"        while ((i < end) && set.contains(data[i]))\n" +
+	"            i++;\n" +
+	"        if (i - off < min)\n" +
+	"            return -1;\n" +
+	"        return node.paniced ? (off + min) : i;\n" +
+	"    }\n\n" +
+	"    private static boolean matches(final int[] data, final int off, final int[] string)\n" +
+	"    {\n" +
+	"        final int n = string.length;\n" +
+	"        if (off + n >= data.length)\n" +
+	"            return false;\n" +
+	"        for (int i = 0; i < n; i++)\n" +
+	"            if (data[i + off] != string[i])\n" +
+	"                return false;\n" +
+	"        return true;\n" +
+	"    }\n\n" +
+	"    private static int word(final int[] data, final int off, final int[] string)\n" +
+	"    {\n" +
+	"        final int end = off + string.length;\n" +
+	"        if ((matches(data, off, string) == false) || (check('w', data, off) == false) || (check('w', data, end) == false))\n" +
+	"            return -1;\n" +
+	"        return end;\n" +
+	"    }\n\n" +
+	"    private static int partial(final int[] data, final int off, final int[] string)\n" +
+	"    {\n" +
+	"        final int n = string.length, m = data.length;\n" +
+	"        if (n == 0)\n" +
+	"            return off;\n" +
+	"        if ((off >= m) || (data[off] != string[0]))\n" +
+	"            return -1;\n" +
+	"        for (int i = 1; i < n; i++)\n" +
+	"            if ((i + off >= m) || (data[i + off] != string[i]))\n" +
+	"                return off + i;\n" +
+	"        return off + n;\n" +
+	"    }\n\n" +
+	"    private static boolean check(final char check, final int[] data, final int off)\n" +
+	"    {\n" +
+	"        final int prev = off <= 0 ? -1 : data[off - 1];\n" +
+	"        final int next = off >= data.length ? -1 : data[off];\n" +
+	"        switch (check)\n" +
+	"        {\n" +
+	"            case 'A':  return (prev == -1) || (prev == '\\n') || (prev == '\\r') || (prev == '\\f');\n" +
+	"            case 'Z':  return (next == -1) || (next == '\\n') || (next == '\\r') || (next == '\\f');\n" +
+	"            case 'z':  return next == -1;\n" +
+	"            case 'W':  return delimiter(prev);\n" +
+	"            default:   return delimiter(prev) || delimiter(next);\n" +
+	"        }\n" +
+	"    }\n\n" +
+	"    private static boolean delimiter(final int c)\n" +
+	"    {\n" +
+	"        if (c == -1)  return true;\n" +
+	"        if (c > 255)  return false;\n" +
+	"        switch ((char)c)\n" +
+	"        {\n" +
+	"            case '\\r': case '\\n': case '\\f':\n" +
+	"            case '\\t': case ' ':\n" +
+	"            case ':':  case '|':  case '=':  case '-':\n" +
+	"            case '<':  case '(':  case '{':  case '[':\n" +
+	"            case '>':  case ')':  case '}':  case ']':\n" +
+	"                return true;\n" +
+	"            default:\n" +
+	"                return false;\n" +
+	"        }\n" +
+	"    }\n\n" +
+	"    private static int[][] table(final String index, final int[][] lists)\n" +
+	"    {\n" +
+	"        final int[][] rc = new int[index.length()][];\n" +
+	"        for (int i = 0, n = rc.length; i < n; i++)\n" +
+	"            rc[i] = lists[index.charAt(i)];\n" +
+	"        return rc;\n" +
+	"    }\n";
+    
+}
@@ -0,0 +1,427 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp;
+
+import java.io.*;
+import java.nio.*;
+
+
+/**
+ * <p>Class for decoding UTF-8 encoded data, block by block, into {@link CodePointText}</p>
+ * <p>
+ *   Continuation bytes without a leading byte are not characters and are skipped,
+ *   a sequence that is interrupted by a byte that is not a continuation byte, or by
+ *   the end of the data, is decoded to the bits it has read.
+ * </p>
+ * <p>
+ *   The output buffer is a byte array while all decoded characters are in Latin-1,
+ *   it is widened to a char array when a character outside Latin-1 is decoded and
+ *   to an int array when a character outside the Basic Multilingual Plane is decoded.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+class UTF8Decoder
+{
+    /**
+     * The size of the chunks read from streams
+     */
+    private static final int CHUNK_SIZE = 65536;
+    
+    
+    
+    /**
+     * Constructor
+     * 
+     * @param  capacity  The initial capacity of the output buffer, if this is at least
+     *                   the number of bytes to decode the buffer will never need to grow
+     *                   unless it is widened
+     */
+    UTF8Decoder(final int capacity)
+    {
+	this.latin1 = new byte[capacity < 16 ? 16 : capacity];
+    }
+    
+    
+    
+    /**
+     * The output buffer if all decoded characters are in Latin-1, otherwise {@code null}
+     */
+    private byte[] latin1;
+    
+    /**
+     * The output buffer if all decoded characters are in the Basic Multilingual Plane
+     * but not all are in Latin-1, otherwise {@code null}
+     */
+    private char[] utf16 = null;
+    
+    /**
+     * The output buffer if not all decoded characters are in the Basic Multilingual Plane,
+     * otherwise {@code null}
+     */
+    private int[] utf32 = null;
+    
+    /**
+     * The greatest character the output buffer can store
+     */
+    private int limit = 0xFF;
+    
+    /**
+     * The number of decoded characters in the output buffer
+     */
+    private int size = 0;
+    
+    /**
+     * The number of bytes decoded since the output buffer was cleared,
+     * the output buffer is kept at least this large
+     */
+    private long consumed = 0;
+    
+    /**
+     * The bits read so far of the current multibyte character
+     */
+    private int value = 0;
+    
+    /**
+     * The number of continuation bytes left of the current multibyte character
+     */
+    private int remaining = 0;
+    
+    /**
+     * Buffer used to copy blocks out of direct byte buffers, {@code null} until needed
+     */
+    private byte[] chunk = null;
+    
+    
+    
+    /**
+     * Decodes an entire stream
+     * 
+     * @param   is  The stream to read
+     * @return      The decoded characters
+     * 
+     * @throws  IOException  On I/O exception
+     */
+    static CodePointText decode(final InputStream is) throws IOException
+    {
+	final UTF8Decoder decoder = new UTF8Decoder(is.available());
+	final byte[] chunk = new byte[CHUNK_SIZE];
+	
+	for (int n; (n = is.read(chunk, 0, CHUNK_SIZE)) != -1;)
+	    decoder.decode(chunk, 0, n);
+	
+	decoder.finish();
+	return decoder.toText();
+    }
+    
+    
+    /**
+     * Decodes a block of bytes and appends the characters to the output buffer,
+     * a character may be split between blocks
+     * 
+     * @param  bytes  The bytes
+     * @param  off    The offset of the block in {@code bytes}
+     * @param  len    The length of the block
+     */
+    void decode(final byte[] bytes, final int off, final int len)
+    {
+	ensureCapacity(this.consumed += len);
+	
+	int value = this.value;
+	int remaining = this.remaining;
+	
+	for (int i = off, end = off + len; i < end;)
+	    if (remaining == 0)
+	    {
+		if ((i = ascii(bytes, i, end)) == end)
+		    break;
+		
+		final int b = bytes[i++];
+		if ((b & 0xC0) == 0x80)
+		    continue; //non-character
+		
+		final int n = Integer.numberOfLeadingZeros(~(b << 24));
+		value = b & (0x7F >> n);
+		remaining = n - 1;
+	    }
+	    else
+	    {
+		final int b = bytes[i];
+		if ((b & 0xC0) != 0x80)
+		{
+		    append(value);
+		    remaining = 0;
+		    continue;
+		}
+		
+		i++;
+		value = (value << 6) | (b & 0x3F);
+		if (--remaining == 0)
+		    append(value);
+	    }
+	
+	this.value = value;
+	this.remaining = remaining;
+    }
+    
+    
+    /**
+     * Decodes the remaining bytes of a buffer and appends the characters to the
+     * output buffer, a character may be split between buffers
+     * 
+     * @param  bytes  The bytes, its position is moved to its limit
+     */
+    void decode(final ByteBuffer bytes)
+    {
+	if (bytes.hasArray())
+	{
+	    decode(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+	    bytes.position(bytes.limit());
+	    return;
+	}
+	
+	if (this.chunk == null)
+	    this.chunk = new byte[CHUNK_SIZE];
+	
+	for (int n; (n = bytes.remaining()) > 0;)
+	{
+	    if (n > CHUNK_SIZE)
+		n = CHUNK_SIZE;
+	    bytes.get(this.chunk, 0, n);
+	    decode(this.chunk, 0, n);
+	}
+    }
+    
+    
+    /**
+     * Ends the decoding, flushing any partially read character
+     */
+    void finish()
+    {
+	if (this.remaining > 0)
+	{
+	    append(this.value);
+	    this.remaining = 0;
+	}
+    }
+    
+    
+    /**
+     * Gets the number of decoded characters in the output buffer
+     * 
+     * @return  The number of decoded characters
+     */
+    int size()
+    {
+	return this.size;
+    }
+    
+    
+    /**
+     * Gets a decoded character from the output buffer
+     * 
+     * @param   index  The index of the character
+     * @return         The character
+     */
+    int get(final int index)
+    {
+	if (this.utf32 != null)  return this.utf32[index];
+	if (this.utf16 != null)  return this.utf16[index];
+	return this.latin1[index] & 255;
+    }
+    
+    
+    /**
+     * Empties the output buffer, the decoding state and the width of the buffer are kept
+     */
+    void clear()
+    {
+	this.size = 0;
+	this.consumed = this.remaining > 0 ? 1 : 0;
+    }
+    
+    
+    /**
+     * Gets the decoded characters, backed by the output buffer itself
+     * if it has exactly the number of decoded characters as its size
+     * 
+     * @return  The decoded characters
+     */
+    CodePointText toText()
+    {
+	final int n = this.size;
+	if (this.utf32 != null)
+	{
+	    int[] text = this.utf32;
+	    if (n != text.length)
+		System.arraycopy(this.utf32, 0, text = new int[n], 0, n);
+	    return new CodePointText.UTF32(text);
+	}
+	if (this.utf16 != null)
+	{
+	    char[] text = this.utf16;
+	    if (n != text.length)
+		System.arraycopy(this.utf16, 0, text = new char[n], 0, n);
+	    return new CodePointText.UTF16(text);
+	}
+	byte[] text = this.latin1;
+	if (n != text.length)
+	    System.arraycopy(this.latin1, 0, text = new byte[n], 0, n);
+	return new CodePointText.Latin1(text);
+    }
+    
+    
+    /**
+     * Appends a run of ASCII bytes to the output buffer
+     * 
+     * @param   bytes  The bytes
+     * @param   off    The offset of the run
+     * @param   end    The end of the block the run is in
+     * @return         The index of the first byte after the run
+     */
+    private int ascii(final byte[] bytes, final int off, final int end)
+    {
+	int i = off;
+	while ((i < end) && (bytes[i] >= 0))
+	    i++;
+	
+	final int n = i - off;
+	int ptr = this.size;
+	if (this.latin1 != null)
+	    System.arraycopy(bytes, off, this.latin1, ptr, n);
+	else if (this.utf16 != null)
+	{
+	    final char[] out = this.utf16;
+	    for (int j = off; j < i; j++)
+		out[ptr++] = (char)(bytes[j]);
+	}
+	else
+	{
+	    final int[] out = this.utf32;
+	    for (int j = off; j < i; j++)
+		out[ptr++] = bytes[j];
+	}
+	this.size += n;
+	return i;
+    }
+    
+    
+    /**
+     * Appends a character to the output buffer, widening it if necessary
+     * 
+     * @param  c  The character
+     */
+    private void append(final int c)
+    {
+	if ((c & ~this.limit) != 0)
+	    widen(c);
+	
+	if (this.latin1 != null)
+	    this.latin1[this.size++] = (byte)c;
+	else if (this.utf16 != null)
+	    this.utf16[this.size++] = (char)c;
+	else
+	    this.utf32[this.size++] = c;
+    }
+    
+    
+    /**
+     * Widens the output buffer so that it can store a character
+     * 
+     * @param  c  The character
+     */
+    private void widen(final int c)
+    {
+	final int cap = capacity();
+	final int n = this.size;
+	
+	if ((c >>> 16) == 0)
+	{
+	    final byte[] in = this.latin1;
+	    final char[] out = new char[cap];
+	    for (int i = 0; i < n; i++)
+		out[i] = (char)(in[i] & 255);
+	    this.latin1 = null;
+	    this.utf16 = out;
+	    this.limit = 0xFFFF;
+	    return;
+	}
+	
+	final int[] out = new int[cap];
+	if (this.latin1 != null)
+	{
+	    final byte[] in = this.latin1;
+	    for (int i = 0; i < n; i++)
+		out[i] = in[i] & 255;
+	}
+	else
+	{
+	    final char[] in = this.utf16;
+	    for (int i = 0; i < n; i++)
+		out[i] = in[i];
+	}
+	this.latin1 = null;
+	this.utf16 = null;
+	this.utf32 = out;
+	this.limit = -1;
+    }
+    
+    
+    /**
+     * Gets the capacity of the output buffer
+     * 
+     * @return  The capacity of the output buffer
+     */
+    private int capacity()
+    {
+	if (this.utf32 != null)  return this.utf32.length;
+	if (this.utf16 != null)  return this.utf16.length;
+	return this.latin1.length;
+    }
+    
+    
+    /**
+     * Grows the output buffer if it is smaller than a capacity
+     * 
+     * @param  capacity  The capacity
+     */
+    private void ensureCapacity(final long capacity)
+    {
+	final int cap = capacity();
+	if (capacity <= cap)
+	    return;
+	
+	if (capacity > Integer.MAX_VALUE - 8)
+	    throw new OutOfMemoryError("Data too large for an array");
+	
+	long n = (long)cap << 1;
+	if (n < capacity)
+	    n = capacity;
+	if (n > Integer.MAX_VALUE - 8)
+	    n = Integer.MAX_VALUE - 8;
+	
+	if (this.utf32 != null)
+	    System.arraycopy(this.utf32, 0, this.utf32 = new int[(int)n], 0, this.size);
+	else if (this.utf16 != null)
+	    System.arraycopy(this.utf16, 0, this.utf16 = new char[(int)n], 0, this.size);
+	else
+	    System.arraycopy(this.latin1, 0, this.latin1 = new byte[(int)n], 0, this.size);
+    }
+    
+}
@@ -30,20 +30,47 @@ public class UndefiniedDefinitionException extends Exception
     /**
      * Constructor
      *
-     * @param  definition  The undefinied definition
+     * @param  definitions  The undefinied definitions, at least one
      */
-    public UndefiniedDefinitionException(final String definition)
+    public UndefiniedDefinitionException(final String... definitions)
     {
-	super("Refering to an undefinied definition: " + definition);
-	this.definition = definition;
+	super((definitions.length == 1 ? "Refering to an undefinied definition: "
+					: "Refering to undefinied definitions: ") + join(definitions));
+	this.definition = definitions[0];
+	this.definitions = definitions;
     }
     
     
     
     /**
-     * The undefinied definition
+     * The (first) undefinied definition
      */
     public final String definition;
     
+    /**
+     * All undefinied definitions
+     */
+    public final String[] definitions;
+    
+    
+    
+    /**
+     * Joins names into a comma separated list
+     * 
+     * @param   names  The names
+     * @return         The names joined
+     */
+    private static String join(final String[] names)
+    {
+	final StringBuilder rc = new StringBuilder();
+	for (final String name : names)
+	{
+	    if (rc.length() > 0)
+		rc.append(", ");
+	    rc.append(name);
+	}
+	return rc.toString();
+    }
+    
 }
 
@@ -35,10 +35,33 @@ public class JCBNFBacktrack implements GrammarElement
      * @param  replacer  The replacer
      */
     public JCBNFBacktrack(final String name, final String replacee, final String replacer)
+    {
+	this(name, replacee, replacer, -1);
+    }
+    
+    /**
+     * Constructor for backtracks with a resolved capture slot
+     * 
+     * @param  name      The name
+     * @param  replacee  The replacee
+     * @param  replacer  The replacer
+     * @param  slot      The name's capture slot in the compiled grammar
+     */
+    public JCBNFBacktrack(final String name, final String replacee, final String replacer, final int slot)
     {
 	this.name     = name;
 	this.replacee = replacee;
 	this.replacer = replacer;
+	this.slot     = slot;
+	
+	if ((replacee == null) || (replacer == null))
+	    this.replaceeString = this.replacerString = this.replaceeBorders = null;
+	else
+	{
+	    this.replaceeString = Util.stringToIntArray(replacee);
+	    this.replacerString = Util.stringToIntArray(replacer);
+	    this.replaceeBorders = borders(this.replaceeString);
+	}
     }
     
     /**
@@ -68,6 +91,54 @@ public class JCBNFBacktrack implements GrammarElement
      */
     public final String replacer;
     
+    /**
+     * The name's capture slot in the compiled grammar, <code>-1</code> if not resolved
+     */
+    public final int slot;
+    
+    /**
+     * The replacee's characters, <code>null</code> if there is no replacement
+     */
+    public final int[] replaceeString;
+    
+    /**
+     * The replacer's characters, <code>null</code> if there is no replacement
+     */
+    public final int[] replacerString;
+    
+    /**
+     * The length of the longest proper border of each prefix of the replacee, by the prefix's
+     * length less one, that is, its Knuth–Morris–Pratt failure function; <code>null</code>
+     * if there is no replacement
+     */
+    public final int[] replaceeBorders;
+    
+    
+    
+    /**
+     * Computes the length of the longest proper border, that is, a proper prefix
+     * that is also a suffix, of each prefix of a string
+     * 
+     * @param   string  The string
+     * @return          The length of the longest proper border of each prefix, by the prefix's length less one
+     */
+    private static int[] borders(final int[] string)
+    {
+	final int n = string.length;
+	final int[] rc = new int[n];
+	
+	for (int i = 1, b = 0; i < n; i++)
+	{
+	    while ((b > 0) && (string[i] != string[b]))
+		b = rc[b - 1];
+	    if (string[i] == string[b])
+		b++;
+	    rc[i] = b;
+	}
+	
+	return rc;
+    }
+    
     
     
     /**
@@ -33,8 +33,22 @@ public class JCBNFDefinition implements GrammarElement
      * @param  name  The name
      */
     public JCBNFDefinition(final String name)
+    {
+	this(name, -1, null);
+    }
+    
+    /**
+     * Constructor for linked definition references
+     * 
+     * @param  name        The name
+     * @param  id          The definition's index in the compiled grammar
+     * @param  definition  The referenced definition
+     */
+    public JCBNFDefinition(final String name, final int id, final Definition definition)
     {
 	this.name = name;
+	this.id = id;
+	this.definition = definition;
     }
     
     
@@ -44,6 +58,16 @@ public class JCBNFDefinition implements GrammarElement
      */
     public final String name;
     
+    /**
+     * The definition's index in the compiled grammar, <code>-1</code> if not linked
+     */
+    public final int id;
+    
+    /**
+     * The referenced definition, <code>null</code> if not linked
+     */
+    public final Definition definition;
+    
     
     
     /**
@@ -33,8 +33,20 @@ public class JCBNFStore implements GrammarElement
      * @param  name  The name
      */
     public JCBNFStore(final String name)
+    {
+	this(name, -1);
+    }
+    
+    /**
+     * Constructor for stores with a resolved capture slot
+     * 
+     * @param  name  The name
+     * @param  slot  The name's capture slot in the compiled grammar
+     */
+    public JCBNFStore(final String name, final int slot)
     {
 	this.name = name;
+	this.slot = slot;
     }
     
     
@@ -44,6 +56,11 @@ public class JCBNFStore implements GrammarElement
      */
     public final String name;
     
+    /**
+     * The name's capture slot in the compiled grammar, <code>-1</code> if not resolved
+     */
+    public final int slot;
+    
     /**
      * The element
      */
@@ -0,0 +1,316 @@
+/**
+ * jcbnfp — A parser for JCBNF (Jacky's Compilable BNF)
+ * 
+ * Copyright (C) 2012  Mattias Andrée <maandree@kth.se>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>
+ */
+package se.kth.maandree.jcbnfp.elements;
+import se.kth.maandree.jcbnfp.*;
+
+import java.util.*;
+
+
+/**
+ * <p>JCBNF grammar element: alternation of strings and word strings, merged into a trie,
+ *    as created when the grammar is compiled</p>
+ * <p>
+ *   The input is walked through the trie once, and of all alternatives that pass,
+ *   the first in the alternation is used, exactly as if the alternatives were tried
+ *   in order. The walk stops as soon as no alternative further down the trie can
+ *   be earlier in the alternation than the best alternative found so far.
+ * </p>
+ * 
+ * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+ */
+public class JCBNFStringTrie implements GrammarElement
+{
+    /**
+     * Constructor
+     * 
+     * @param  alternatives  The alternatives, in order, each a {@link JCBNFString} or a {@link JCBNFWordString}
+     */
+    public JCBNFStringTrie(final GrammarElement... alternatives)
+    {
+	this.alternatives = alternatives;
+	
+	for (int i = alternatives.length - 1; i >= 0; i--) // backwards, so that the first alternative has the lowest index at each node
+	{
+	    final boolean word = alternatives[i] instanceof JCBNFWordString;
+	    final int[] string = word ? ((JCBNFWordString)alternatives[i]).string : ((JCBNFString)alternatives[i]).string;
+	    
+	    Node node = this.root;
+	    node.minBelow = i;
+	    for (final int c : string)
+	    {
+		node = node.child(c, true);
+		node.minBelow = i;
+	    }
+	    node.terminals.add(0, new int[] { i, word ? 1 : 0 });
+	}
+	
+	final int[] first = new int[this.root.keys.size() << 1];
+	for (int i = 0, n = this.root.keys.size(); i < n; i++)
+	    first[i << 1] = first[(i << 1) | 1] = this.root.keys.get(i).intValue();
+	this.first = new CodePointSet(first);
+	
+	this.root.freeze();
+    }
+    
+    
+    
+    /**
+     * The alternatives, in order
+     */
+    public final GrammarElement[] alternatives;
+    
+    /**
+     * The characters the alternatives begin with
+     */
+    public final CodePointSet first;
+    
+    /**
+     * The root of the trie
+     */
+    private final Node root = new Node();
+    
+    
+    
+    /**
+     * Tests whether any alternative is the empty string
+     * 
+     * @return  Whether any alternative is the empty string
+     */
+    public boolean hasEmpty()
+    {
+	return this.root.terminals.isEmpty() == false;
+    }
+    
+    
+    /**
+     * Tests whether the data can pass the alternation, using the same rules as
+     * {@link Parser} uses for each string and word string
+     * 
+     * @param   data  The data
+     * @param   off   The offset in the data
+     * @return        <code>-1</code> if it didn't pass, otherwise, the number of used characters
+     */
+    public int passes(final CodePointText data, final int off)
+    {
+	final int m = data.length();
+	int best = Integer.MAX_VALUE;
+	int rc = -1;
+	
+	Node node = this.root;
+	for (int d = 0;; d++)
+	{
+	    if (node.minBelow >= best)
+		break;
+	    
+	    if (off + d >= m)
+		break; // strings never pass at the very end of the data
+	    
+	    for (final int[] terminal : node.terminalArray)
+	    {
+		if (terminal[0] >= best)
+		    break;
+		if ((terminal[1] == 0) || wordCheck(data, off, d))
+		{
+		    best = terminal[0];
+		    rc = d;
+		    break;
+		}
+	    }
+	    
+	    if ((node = node.child(data.get(off + d))) == null)
+		break;
+	}
+	
+	return rc;
+    }
+    
+    
+    /**
+     * Checks that a word string may be read from the data
+     * 
+     * @param   data  The data
+     * @param   off   The offset of the word string in the data
+     * @param   len   The length of the word string
+     * @return        Whether there is no word on both sides of either end of the word string
+     */
+    private static boolean wordCheck(final CodePointText data, final int off, final int len)
+    {
+	final int m = data.length();
+	final int end = off + len;
+	
+	int prev = off <= 0 ? -1 : data.get(off - 1);
+	int next = off >= m ? -1 : data.get(off);
+	if (JCBNFCheck.w.check(prev, next) == false)
+	    return false;
+	
+	prev = end <= 0 ? -1 : data.get(end - 1);
+	next = end >= m ? -1 : data.get(end);
+	return JCBNFCheck.w.check(prev, next);
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void printGrammar(final String indent)
+    {
+	System.out.print(indent);
+	System.out.println("|");
+	for (final GrammarElement e : this.alternatives)
+	    e.printGrammar(indent + "  ");
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public String toString()
+    {
+	final StringBuilder rc = new StringBuilder();
+	for (final GrammarElement element : this.alternatives)
+	{
+	    rc.append(" | ");
+	    rc.append(element.toString());
+	}
+	return "(" + rc.toString().substring(3) + ")";
+    }
+    
+    
+    
+    /**
+     * Trie node
+     * 
+     * @author  Mattias Andrée, <a href="mailto:maandree@kth.se">maandree@kth.se</a>
+     */
+    private static class Node
+    {
+	//Has default constructor
+	
+	
+	
+	/**
+	 * The characters of the children, sorted, while the trie is built
+	 */
+	final ArrayList<Integer> keys = new ArrayList<Integer>();
+	
+	/**
+	 * The children, in the same order as {@link #keys}, while the trie is built
+	 */
+	final ArrayList<Node> children = new ArrayList<Node>();
+	
+	/**
+	 * The alternatives that end at this node, while the trie is built,
+	 * as pairs of the index of the alternative and whether it is a word string
+	 */
+	final ArrayList<int[]> terminals = new ArrayList<int[]>();
+	
+	/**
+	 * The characters of the children, sorted
+	 */
+	int[] keyArray;
+	
+	/**
+	 * The children, in the same order as {@link #keyArray}
+	 */
+	Node[] childArray;
+	
+	/**
+	 * The alternatives that end at this node, by ascending index of the alternative
+	 */
+	int[][] terminalArray;
+	
+	/**
+	 * The lowest index of the alternatives that end at this node or below it
+	 */
+	int minBelow = Integer.MAX_VALUE;
+	
+	
+	
+	/**
+	 * Gets, and optionally creates, a child while the trie is built
+	 * 
+	 * @param   c       The character of the child
+	 * @param   create  Whether to create the child if missing
+	 * @return          The child, <code>null</code> if missing and not created
+	 */
+	Node child(final int c, final boolean create)
+	{
+	    int low = 0, high = this.keys.size() - 1;
+	    while (low <= high)
+	    {
+		final int mid = (low + high) >>> 1;
+		final int key = this.keys.get(mid).intValue();
+		if      (c < key)  high = mid - 1;
+		else if (c > key)  low = mid + 1;
+		else
+		    return this.children.get(mid);
+	    }
+	    
+	    if (create == false)
+		return null;
+	    
+	    final Node rc = new Node();
+	    this.keys.add(low, Integer.valueOf(c));
+	    this.children.add(low, rc);
+	    return rc;
+	}
+	
+	
+	/**
+	 * Gets a child of the finished trie
+	 * 
+	 * @param   c  The character of the child
+	 * @return     The child, <code>null</code> if missing
+	 */
+	Node child(final int c)
+	{
+	    final int[] keys = this.keyArray;
+	    int low = 0, high = keys.length - 1;
+	    while (low <= high)
+	    {
+		final int mid = (low + high) >>> 1;
+		final int key = keys[mid];
+		if      (c < key)  high = mid - 1;
+		else if (c > key)  low = mid + 1;
+		else
+		    return this.childArray[mid];
+	    }
+	    return null;
+	}
+	
+	
+	/**
+	 * Converts the trie, from this node, to its array form
+	 */
+	void freeze()
+	{
+	    final int n = this.keys.size();
+	    this.keyArray = new int[n];
+	    this.childArray = this.children.toArray(new Node[n]);
+	    for (int i = 0; i < n; i++)
+	    {
+		this.keyArray[i] = this.keys.get(i).intValue();
+		this.childArray[i].freeze();
+	    }
+	    this.terminalArray = this.terminals.toArray(new int[this.terminals.size()][]);
+	}
+    }
+    
+}